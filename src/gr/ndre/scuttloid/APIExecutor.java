@@ -0,0 +1,105 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pool running the API tasks. Waiting tasks of higher
+ * priority run first, tasks of the same priority in submission order.
+ */
+public class APIExecutor {
+
+	public static final int PRIORITY_HIGH = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_LOW = 2;
+
+	public static final int DEFAULT_THREADS = 3;
+
+	/**
+	 * Seconds an idle thread is kept
+	 */
+	protected static final long KEEP_ALIVE = 30;
+
+	protected static APIExecutor shared;
+
+	protected ThreadPoolExecutor pool;
+
+	protected AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Get the pool shared by the tasks not given another executor
+	 */
+	public static synchronized APIExecutor getShared() {
+		if (shared == null) {
+			shared = new APIExecutor(DEFAULT_THREADS);
+		}
+		return shared;
+	}
+
+	public APIExecutor(int threads) {
+		this.pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>());
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Get an executor queueing its tasks with the given priority
+	 */
+	public Executor withPriority(final int priority) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				APIExecutor.this.pool.execute(new PrioritizedRunnable(command, priority,
+						APIExecutor.this.sequence.getAndIncrement()));
+			}
+		};
+	}
+
+	protected static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+
+		protected Runnable runnable;
+		protected int priority;
+		protected long order;
+
+		public PrioritizedRunnable(Runnable command, int command_priority, long command_order) {
+			this.runnable = command;
+			this.priority = command_priority;
+			this.order = command_order;
+		}
+
+		@Override
+		public void run() {
+			this.runnable.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedRunnable other) {
+			if (this.priority != other.priority) {
+				return this.priority < other.priority ? -1 : 1;
+			}
+			return this.order < other.order ? -1 : (this.order == other.order ? 0 : 1);
+		}
+	}
+
+}
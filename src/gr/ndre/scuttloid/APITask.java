@@ -18,18 +18,30 @@
 
 package gr.ndre.scuttloid;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -37,25 +49,21 @@ import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HTTP;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Xml;
 
-public class APITask extends AsyncTask<Void, Void, Void> {
+public class APITask extends AsyncTask<Void, Object, Void> {
 
 	public static final int METHOD_GET = 0;
 	public static final int METHOD_POST = 1;
@@ -65,10 +73,21 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 	public static final int PARSE_ERROR = 1002;
 	public static final int SSL_ERROR = 1003;
 	public static final int TIMEOUT_ERROR = 1004;
+	public static final int CONNECTION_ERROR = 1005;
 	
 	public static final int CONNECTION_TIMEOUT = 5000;
 	public static final int SOCKET_TIMEOUT = 15000;
 	
+	/**
+	 * Attempts of a GET request failing with a timeout or a lost connection
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+	
+	/**
+	 * Wait before the first retry in ms, doubled for each of the next ones
+	 */
+	public static final int RETRY_DELAY = 1000;
+	
 	protected Callback callback;
 	protected String url;
 	protected String username;
@@ -79,6 +98,17 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 	protected List<NameValuePair> data;
 	protected ArrayList<Integer> acceptable_statuses = new ArrayList<Integer>();
 	protected boolean accept_all_certs;
+	protected Executor executor;
+	protected int priority = APIExecutor.PRIORITY_NORMAL;
+	protected String etag;
+	protected String last_modified;
+	protected String response_etag;
+	protected String response_last_modified;
+	
+	/**
+	 * Request being sent, aborted if the task is cancelled
+	 */
+	protected volatile HttpRequestBase request;
 	
 	APITask(Callback task_callback, String pref_username, String pref_password) {
 		this.callback = task_callback;
@@ -92,6 +122,9 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 	
 	public void setHandler(DefaultHandler xml_handler) {
 		this.handler = xml_handler;
+		if (xml_handler instanceof ProgressiveHandler) {
+			((ProgressiveHandler) xml_handler).setTask(this);
+		}
 	}
 
 	public void setData(List<NameValuePair> data_list) {
@@ -110,45 +143,117 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 		this.accept_all_certs = set_accept_all_certs;
 	}
 	
+	/**
+	 * Run the task on the given executor instead of the default one
+	 */
+	public void setExecutor(Executor task_executor) {
+		this.executor = task_executor;
+	}
+	
+	/**
+	 * Set the priority in the shared executor, one of the APIExecutor.PRIORITY_* values
+	 */
+	public void setPriority(int task_priority) {
+		this.priority = task_priority;
+	}
+	
+	/**
+	 * Execute the task
+	 */
+	public void start() {
+		if (this.executor != null) {
+			this.executeOnExecutor(this.executor);
+		}
+		else {
+			this.executeOnExecutor(APIExecutor.getShared().withPriority(this.priority));
+		}
+	}
+	
+	/**
+	 * Stop the task and close its connection.
+	 * The callback is not called afterwards.
+	 */
+	public void abort() {
+		this.cancel(true);
+		HttpRequestBase current_request = this.request;
+		if (current_request != null) {
+			current_request.abort();
+		}
+	}
+	
+	/**
+	 * Make the request conditional, the server may then answer 304 Not Modified
+	 */
+	public void setValidators(String request_etag, String request_last_modified) {
+		this.etag = request_etag;
+		this.last_modified = request_last_modified;
+	}
+	
+	public String getResponseETag() {
+		return this.response_etag;
+	}
+	
+	public String getResponseLastModified() {
+		return this.response_last_modified;
+	}
+	
 	@Override
 	protected Void doInBackground(Void... params) {
 		DefaultHttpClient client = getClient();
-		HttpRequestBase request = buildRequest();
-		if (request != null) {
+		for (int attempt = 0; ; attempt++) {
+			HttpRequestBase request = buildRequest();
+			if (request == null || this.isCancelled()) {
+				break;
+			}
+			this.request = request;
 			executeRequest(client, request);
+			this.request = null;
+			if (!this.shouldRetry(attempt)) {
+				break;
+			}
+			try {
+				Thread.sleep(RETRY_DELAY << attempt);
+			}
+			catch (InterruptedException e) {
+				// Cancelled
+				break;
+			}
 		}
 		return null;
 	}
+	
+	/**
+	 * Whether to send the request again. The handler is kept, so
+	 * it can skip what it already got from the previous attempt.
+	 */
+	protected boolean shouldRetry(int attempt) {
+		return this.method == METHOD_GET && attempt + 1 < MAX_ATTEMPTS && !this.isCancelled()
+				&& (this.status == TIMEOUT_ERROR || this.status == CONNECTION_ERROR);
+	}
 
 	protected DefaultHttpClient getClient() {
-		DefaultHttpClient client;
-		if (this.url.startsWith("https://") & this.accept_all_certs) {
-			try {
-				SchemeRegistry schemeRegistry = new SchemeRegistry();
-				schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-				schemeRegistry.register(new Scheme("https", new TrustingSSLSocketFactory(), 443));
-				HttpParams params = new BasicHttpParams();
-				ClientConnectionManager connectionManager = 
-					    new ThreadSafeClientConnManager(params, schemeRegistry);
-				client = new DefaultHttpClient(connectionManager, params);
-			}
-			catch (Exception e) {
-				client = new DefaultHttpClient();
-			}
-		}
-		else {
-			client = new DefaultHttpClient();
-		}
-		return client;
+		boolean trusting = this.url.startsWith("https://") & this.accept_all_certs;
+		return HTTPClientPool.getClient(trusting);
 	}
 
 	protected void executeRequest(HttpClient client, HttpRequestBase request) {
+		boolean complete = false;
 		try {
+			long started = SystemClock.elapsedRealtime();
 			HttpResponse response = client.execute(request);
+			LinkQuality.recordLatency(SystemClock.elapsedRealtime() - started);
 			this.status = response.getStatusLine().getStatusCode();
-			if (!this.isError(this.status)) {
+			this.response_etag = this.getHeaderValue(response, "ETag");
+			this.response_last_modified = this.getHeaderValue(response, "Last-Modified");
+			if (!this.isError(this.status) && this.status != HttpStatus.SC_NOT_MODIFIED) {
 				this.parseResponse(response);
 			}
+			// Read what is left so that the connection goes back to the pool
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				entity.consumeContent();
+			}
+			complete = true;
 		}
 		catch (UnknownHostException e) {
 			this.status = UNKNOWN_HOST;
@@ -156,6 +261,9 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 		catch (SAXException e) {
 			this.status = PARSE_ERROR;
 		}
+		catch (XmlPullParserException e) {
+			this.status = PARSE_ERROR;
+		}
 		catch (SSLHandshakeException e) {
 			this.status = SSL_ERROR;
 		}
@@ -164,14 +272,36 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 		}
 		catch (ConnectTimeoutException e) {
 			this.status = TIMEOUT_ERROR;
+			LinkQuality.recordTimeout();
 		}
 		catch (SocketTimeoutException e) {
 			this.status = TIMEOUT_ERROR;
+			LinkQuality.recordTimeout();
+		}
+		catch (SocketException e) {
+			this.status = CONNECTION_ERROR;
+		}
+		catch (NoHttpResponseException e) {
+			this.status = CONNECTION_ERROR;
 		}
 		catch (Exception e) {
 			this.status = GENERIC_ERROR;
 			//System.out.println(e.getClass().getName());
 		}
+		finally {
+			if (!complete) {
+				// Never give back a connection in an unknown state
+				request.abort();
+			}
+		}
+	}
+	
+	protected String getHeaderValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		if (header != null) {
+			return header.getValue();
+		}
+		return null;
 	}
 	
 	protected boolean isError(int status_id) {
@@ -197,22 +327,101 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 			request = new HttpGet(this.url);
 		}
 		
-		// Set timeout limits
+		// Set timeout limits, longer on slow links
 		BasicHttpParams http_parameters = new BasicHttpParams();
-		HttpConnectionParams.setConnectionTimeout(http_parameters, CONNECTION_TIMEOUT);
-		HttpConnectionParams.setSoTimeout(http_parameters, SOCKET_TIMEOUT);
+		HttpConnectionParams.setConnectionTimeout(http_parameters, LinkQuality.getConnectionTimeout());
+		HttpConnectionParams.setSoTimeout(http_parameters, LinkQuality.getSocketTimeout());
 		request.setParams(http_parameters);
 		
 		// Add Basic Authentication header
 		this.addAuthHeader(request);
 		
+		// Add conditional headers
+		if (this.etag != null) {
+			request.addHeader("If-None-Match", this.etag);
+		}
+		if (this.last_modified != null) {
+			request.addHeader("If-Modified-Since", this.last_modified);
+		}
+		
+		// Ask for a compressed response
+		request.addHeader("Accept-Encoding", "gzip, deflate");
+		
 		return request;
 	}
 
-	protected void parseResponse(HttpResponse response) throws IOException, SAXException {
+	protected void parseResponse(HttpResponse response) throws IOException, SAXException, XmlPullParserException {
 		if (this.handler != null) {
-			InputStream content = response.getEntity().getContent();
-			Xml.parse(content, Xml.Encoding.UTF_8, this.handler);
+			CountingInputStream counter = new CountingInputStream(response.getEntity().getContent());
+			InputStream content = this.getContent(response.getEntity(), counter);
+			long started = SystemClock.elapsedRealtime();
+			try {
+				if (this.handler instanceof StreamParser) {
+					((StreamParser) this.handler).parse(content);
+				}
+				else {
+					Xml.parse(content, Xml.Encoding.UTF_8, this.handler);
+				}
+			}
+			finally {
+				content.close();
+			}
+			LinkQuality.recordTransfer(counter.count, SystemClock.elapsedRealtime() - started);
+		}
+	}
+	
+	/**
+	 * Get the given response body stream, decompressed if needed
+	 */
+	protected InputStream getContent(HttpEntity entity, InputStream content) throws IOException {
+		Header encoding_header = entity.getContentEncoding();
+		if (encoding_header != null) {
+			String encoding = encoding_header.getValue().toLowerCase(Locale.US);
+			if (encoding.contains("gzip")) {
+				content = new GZIPInputStream(content);
+			}
+			else if (encoding.contains("deflate")) {
+				content = getDeflateContent(content);
+			}
+		}
+		return content;
+	}
+	
+	/**
+	 * Inflate a "deflate" body, which servers send either zlib wrapped
+	 * as the specification says, or as raw deflate data
+	 */
+	protected static InputStream getDeflateContent(InputStream content) throws IOException {
+		PushbackInputStream stream = new PushbackInputStream(content, 2);
+		int first = stream.read();
+		int second = stream.read();
+		if (second != -1) {
+			stream.unread(second);
+		}
+		if (first != -1) {
+			stream.unread(first);
+		}
+		// Compression method 8 and a header checksum multiple of 31
+		boolean zlib = first != -1 && second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+		if (zlib) {
+			return new InflaterInputStream(stream);
+		}
+		return new InflaterInputStream(stream, new Inflater(true));
+	}
+	
+	/**
+	 * Send partial results to the UI thread while parsing
+	 */
+	public void publish(Object progress) {
+		this.publishProgress(progress);
+	}
+	
+	@Override
+	protected void onProgressUpdate(Object... values) {
+		if (this.callback instanceof ProgressCallback && !this.isCancelled()) {
+			for (Object progress : values) {
+				((ProgressCallback) this.callback).onDataProgress(this.handler, progress);
+			}
 		}
 	}
 	
@@ -237,4 +446,52 @@ public class APITask extends AsyncTask<Void, Void, Void> {
 		void onError(int status);
 	}
 	
+	public interface ProgressCallback extends Callback {
+		void onDataProgress(DefaultHandler handler, Object progress);
+	}
+	
+	/**
+	 * A handler reading the response itself instead of receiving SAX events
+	 */
+	public interface StreamParser {
+		void parse(InputStream content) throws IOException, XmlPullParserException;
+	}
+	
+	/**
+	 * A handler able to publish partial results through its task
+	 */
+	public interface ProgressiveHandler {
+		void setTask(APITask task);
+	}
+	
+	/**
+	 * Count the bytes received, before decompression
+	 */
+	protected static class CountingInputStream extends FilterInputStream {
+		
+		public long count;
+		
+		public CountingInputStream(InputStream input) {
+			super(input);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+			if (value != -1) {
+				this.count++;
+			}
+			return value;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				this.count += read;
+			}
+			return read;
+		}
+	}
+	
 }
@@ -37,7 +37,8 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 public class BookmarkAddActivity extends Activity
-	implements OnClickListener, ScuttleAPI.CreateCallback, ScuttleAPI.BookmarksCallback {
+	implements OnClickListener, ScuttleAPI.CreateCallback, ScuttleAPI.BookmarkCallback,
+	ScuttleAPI.OfflineCallback {
 
 	/**
 	 * The bookmark content this activity is editing.
@@ -48,7 +49,7 @@ public class BookmarkAddActivity extends Activity
      * Stores an instance of the progress dialog
      */
     private ProgressDialog progressDialog;
-	
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -120,10 +121,7 @@ public class BookmarkAddActivity extends Activity
 				fixed_url = fixed_url.substring(0, fixed_url.length() - 1);
 			}
 			this.item.url = fixed_url;
-			this.item.title = title;
-			this.item.description = description;
-			this.item.tags = tags;
-			this.item.status = status;
+			this.item.update(title, description, tags, status);
 			
 			// Save the bookmark
 			ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), this);
@@ -145,6 +143,14 @@ public class BookmarkAddActivity extends Activity
 	    alert.show();
 	}
 
+	@Override
+	public void onOffline() {
+		Outbox.getInstance(this).add(Outbox.CREATE, this.item);
+		this.progressDialog.dismiss();
+		Toast.makeText(this, getString(R.string.saved_offline), Toast.LENGTH_LONG).show();
+		finish();
+	}
+
 	@Override
 	public Context getContext() {
 		return this;
@@ -156,6 +162,7 @@ public class BookmarkAddActivity extends Activity
         if (bookmarks != null) {
             // Otherwise we come from a SHARE intent and there is no need to put the item on top of the list.
             bookmarks.addItemToTop(this.item);
+            new BookmarkStore(this).saveAsync(bookmarks);
         }
 
         //close progress dialog
@@ -167,43 +174,41 @@ public class BookmarkAddActivity extends Activity
 	@Override
 	public void onBookmarkExists() {
 		BookmarkContent bookmarks = BookmarkContent.getShared();
-		if (bookmarks == null) {
-			// No bookmarks are available, probably coming from SHARE intent.
-			this.retrieveBookmarks();
+		if (bookmarks == null || bookmarks.getItem(this.item.url) == null) {
+			// Probably coming from SHARE intent, ask the server for this bookmark only
+			this.lookupBookmark();
 		}
 		else {
 			Toast.makeText(this, getString(R.string.error_bookmarkexists), Toast.LENGTH_SHORT).show();
-			this.sendToEdit();
+			this.sendToEdit(bookmarks.getItem(this.item.url));
 		}
 	}
 
-	protected void sendToEdit() {
-		Integer position = BookmarkContent.getShared().getPosition(this.item.url);
-		if (position != -1) {
-			Intent intent = new Intent(this, BookmarkEditActivity.class);
-			intent.putExtra(BookmarkDetailActivity.ARG_ITEM_POS, position);
-			startActivity(intent);
-			finish();
-		}
+	protected void sendToEdit(BookmarkContent.Item existing) {
+		Intent intent = new Intent(this, BookmarkEditActivity.class);
+		intent.putExtra(BookmarkDetailActivity.ARG_ITEM_URL, existing.url);
+		intent.putExtra(BookmarkEditActivity.ARG_ITEM, existing);
+		startActivity(intent);
+		finish();
 	}
 
-	protected void retrieveBookmarks() {
-		// Display the progress bar
-		View form = findViewById(R.id.form);
-		form.setVisibility(View.GONE);
-		View progress_bar = findViewById(R.id.progress_bar);
-		progress_bar.setVisibility(View.VISIBLE);
-		
+	protected void lookupBookmark() {
 		Toast.makeText(this, getString(R.string.error_bookmarkexists_retrieving), Toast.LENGTH_LONG).show();
-		
 		ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), this);
-		api.getBookmarks();
+		api.getBookmark(this.item.url);
 	}
-	
+
 	@Override
-	public void onBookmarksReceived(BookmarkContent bookmarks) {
-		BookmarkContent.setShared(bookmarks);
-		this.sendToEdit();
+	public void onBookmarkReceived(BookmarkContent.Item existing) {
+		this.progressDialog.dismiss();
+		if (existing == null) {
+			// The server stores it under another URL, which we can not guess
+			AlertDialog alert = new AlertDialog.Builder(this).create();
+			alert.setMessage(getString(R.string.error_bookmarkexists_notfound));
+			alert.show();
+			return;
+		}
+		this.sendToEdit(existing);
 	}
 
 }
@@ -18,10 +18,20 @@
 
 package gr.ndre.scuttloid;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Helper class for providing Bookmark content for user interfaces.
@@ -43,6 +53,34 @@ public class BookmarkContent {
 	 */
 	protected ArrayList<Item> items = new ArrayList<Item>();
 	
+	/**
+	 * Position of each item in the items array, rebuilt when needed
+	 * after an insertion at the top or a removal.
+	 */
+	protected Map<Item, Integer> positions = new HashMap<Item, Integer>();
+	protected boolean positions_valid = true;
+	
+	/**
+	 * Title and tags index for live search.
+	 */
+	protected SearchIndex index = new SearchIndex();
+	
+	/**
+	 * Bookmarks by tag, for tag browsing.
+	 */
+	protected TagIndex tag_index = new TagIndex();
+	
+	/**
+	 * Server last update time, as reported by the API when the items were fetched.
+	 */
+	protected String update_time;
+	
+	/**
+	 * HTTP validators of the response the items were parsed from.
+	 */
+	protected String etag;
+	protected String last_modified;
+	
 	/**
 	 * Get shared instance
 	 */
@@ -60,48 +98,224 @@ public class BookmarkContent {
 	/**
 	 * Get item by location
 	 */
-	public Item getItem(int location) {
+	public synchronized Item getItem(int location) {
 		return this.items.get(location);
 	}
 	
+	/**
+	 * Get item by URL
+	 */
+	public synchronized Item getItem(String url) {
+		return this.item_map.get(url);
+	}
+	
 	/**
 	 * Remove item by URL
 	 */
-	public void removeItem(String url) {
-		int position = this.getPosition(url);
-		this.item_map.remove(url);
-		this.items.remove(position);
+	public synchronized void removeItem(String url) {
+		Item item = this.item_map.remove(url);
+		if (item != null) {
+			this.removeFromList(item);
+			this.index.remove(item);
+			this.tag_index.remove(item);
+		}
+	}
+	
+	/**
+	 * Remove items by URL, moving the remaining ones up in a single pass
+	 */
+	public synchronized void removeItems(Collection<String> urls) {
+		Set<Item> removed = new HashSet<Item>();
+		for (String url : urls) {
+			Item item = this.item_map.remove(url);
+			if (item != null) {
+				removed.add(item);
+				this.index.remove(item);
+				this.tag_index.remove(item);
+			}
+		}
+		if (removed.isEmpty()) {
+			return;
+		}
+		int kept = 0;
+		final int count = this.items.size();
+		for (int i = 0; i < count; i++) {
+			Item item = this.items.get(i);
+			if (!removed.contains(item)) {
+				this.items.set(kept++, item);
+			}
+		}
+		this.items.subList(kept, count).clear();
+		// Rebuilt once, on the next lookup
+		this.positions.clear();
+		this.positions_valid = false;
+	}
+	
+	/**
+	 * Number of items in the collection
+	 */
+	public synchronized int size() {
+		return this.items.size();
 	}
 	
 	/**
 	 * Get item list
 	 */
-	public ArrayList<Item> getItems() {
+	public synchronized ArrayList<Item> getItems() {
 		return new ArrayList<Item>(this.items);
 	}
 
 	/**
 	 * Add a bookmark to the collection.
 	 */
-	public void addItem(Item item) {
-		this.items.remove(item);
+	public synchronized void addItem(Item item) {
+		item.prepare();
+		this.removeDuplicate(item);
+		if (this.positions_valid) {
+			// Appending keeps every other position
+			this.positions.put(item, this.items.size());
+		}
 		this.items.add(item);
 		this.item_map.put(item.url, item);
+		this.index.add(item);
+		this.tag_index.add(item);
 	}
 	
 	/**
 	 * Add a bookmark to the top of the collection
 	 */
-	public void addItemToTop(Item item) {
-		this.items.remove(item);
+	public synchronized void addItemToTop(Item item) {
+		item.prepare();
+		this.removeDuplicate(item);
 		this.items.add(0, item);
+		this.positions_valid = false;
 		this.item_map.put(item.url, item);
+		this.index.add(item);
+		this.tag_index.add(item);
+	}
+	
+	/**
+	 * Put the item in place of the one having the same URL, or at the top if there is none
+	 */
+	public synchronized void replaceItem(Item item) {
+		Item previous = this.item_map.get(item.url);
+		int position = previous == null ? -1 : this.getPosition(previous);
+		if (position == -1) {
+			this.addItemToTop(item);
+			return;
+		}
+		item.prepare();
+		this.items.set(position, item);
+		this.positions.remove(previous);
+		this.positions.put(item, position);
+		this.item_map.put(item.url, item);
+		this.index.remove(previous);
+		this.tag_index.remove(previous);
+		this.index.add(item);
+		this.tag_index.add(item);
+	}
+	
+	/**
+	 * Remove the item, or the other item having the same URL, before adding it again
+	 */
+	protected void removeDuplicate(Item item) {
+		Item previous = this.item_map.get(item.url);
+		if (previous != null) {
+			this.removeFromList(previous);
+			if (previous != item) {
+				this.index.remove(previous);
+				this.tag_index.remove(previous);
+			}
+		}
+	}
+	
+	protected void removeFromList(Item item) {
+		int position = this.getPosition(item);
+		if (position == -1) {
+			return;
+		}
+		this.items.remove(position);
+		this.positions.remove(item);
+		if (position != this.items.size()) {
+			// Following items moved up
+			this.positions_valid = false;
+		}
+	}
+	
+	protected int getPosition(Item item) {
+		if (!this.positions_valid) {
+			this.positions.clear();
+			final int count = this.items.size();
+			for (int i = 0; i < count; i++) {
+				this.positions.put(this.items.get(i), i);
+			}
+			this.positions_valid = true;
+		}
+		Integer position = this.positions.get(item);
+		if (position == null) {
+			return -1;
+		}
+		return position;
 	}
 	
-	public int getPosition(String url) {
+	/**
+	 * Get the bookmarks whose title, title words or tags start with the given
+	 * lower case prefix, in collection order
+	 */
+	public synchronized ArrayList<Item> search(String prefix) {
+		return this.sortByPosition(this.index.find(prefix));
+	}
+	
+	/**
+	 * Get the bookmarks having all the given tags, or any of them, in collection order
+	 */
+	public synchronized ArrayList<Item> findByTags(List<String> tags, boolean match_all) {
+		return this.sortByPosition(this.tag_index.find(tags, match_all));
+	}
+	
+	/**
+	 * Get every tag with its number of bookmarks, most used first
+	 */
+	public List<TagIndex.TagCount> getTagCounts() {
+		return this.tag_index.getTagCounts();
+	}
+	
+	protected ArrayList<Item> sortByPosition(Set<Item> matches) {
+		ArrayList<Item> results = new ArrayList<Item>(matches);
+		Collections.sort(results, new Comparator<Item>() {
+			@Override
+			public int compare(Item first, Item second) {
+				return BookmarkContent.this.getPosition(first) - BookmarkContent.this.getPosition(second);
+			}
+		});
+		return results;
+	}
+	
+	public String getUpdateTime() {
+		return this.update_time;
+	}
+	
+	public void setUpdateTime(String time) {
+		this.update_time = time;
+	}
+	
+	public String getETag() {
+		return this.etag;
+	}
+	
+	public String getLastModified() {
+		return this.last_modified;
+	}
+	
+	public void setValidators(String response_etag, String response_last_modified) {
+		this.etag = response_etag;
+		this.last_modified = response_last_modified;
+	}
+	
+	public synchronized int getPosition(String url) {
 		Item item = this.item_map.get(url);
 		if (item != null) {
-			return this.items.indexOf(item);
+			return this.getPosition(item);
 		}
 		return -1;
 	}
@@ -113,39 +327,154 @@ public class BookmarkContent {
 		
 		private static final long serialVersionUID = 4226037964405984432L;
 		
+		protected static final String UNFILED_TAG = "system:unfiled";
+		
 		public String url;
 		public String title;
 		public String description;
 		public String status;
 		
-		protected String tags;
+		/**
+		 * Tag ids in the TagTable, null if there are no tags at all
+		 */
+		protected transient int[] tag_ids;
+		
+		/**
+		 * Values derived from the fields above, computed once by prepare()
+		 */
+		protected transient boolean prepared;
+		protected transient String[] search_terms;
+		protected transient int status_id;
+		
+		/**
+		 * Computed when first displayed
+		 */
+		protected transient String csv_tags;
 		
 		@Override
 		public String toString() {
 			return this.title;
 		}
 		
+		/**
+		 * Change the editable fields
+		 */
+		public void update(String new_title, String new_description, String new_tags, String new_status) {
+			this.title = new_title;
+			this.description = new_description;
+			this.setTags(new_tags);
+			this.status = new_status;
+			this.prepared = false;
+		}
+		
+		/**
+		 * Set the space separated tags, as sent by the server
+		 */
+		public void setTags(String new_tags) {
+			this.tag_ids = TagTable.encode(new_tags);
+			this.csv_tags = null;
+			this.prepared = false;
+		}
+		
+		/**
+		 * Get the space separated tags, as sent by the server
+		 */
+		public String getRawTags() {
+			return TagTable.decode(this.tag_ids, -1);
+		}
+		
+		/**
+		 * Compute the derived values, must be called again when fields are changed directly
+		 */
+		public void prepare() {
+			// Lower case title, title words and tags, matched by live search
+			Set<String> terms = new HashSet<String>();
+			if (this.title != null) {
+				String lower_title = this.title.toLowerCase(Locale.getDefault());
+				terms.add(lower_title);
+				for (String word : lower_title.split(" ")) {
+					terms.add(word);
+				}
+			}
+			if (this.tag_ids != null) {
+				for (int id : this.tag_ids) {
+					// Shared by all the items having the tag
+					terms.add(TagTable.getLowerCaseName(id));
+				}
+			}
+			this.search_terms = terms.toArray(new String[terms.size()]);
+			
+			this.status_id = -1;
+			if (this.status != null) {
+				// Only a few distinct values
+				this.status = this.status.intern();
+				try {
+					this.status_id = Integer.parseInt(this.status);
+				}
+				catch (NumberFormatException e) {
+					// Unknown status, not displayed
+				}
+			}
+			this.prepared = true;
+		}
+		
 		public String getTags() {
-			String real_tags = "";
-			if (!this.tags.equals("system:unfiled")) {
-				real_tags = this.tags;
+			if (this.tag_ids == null || this.isUnfiled()) {
+				return "";
 			}
-			return real_tags;
+			return TagTable.decode(this.tag_ids, -1);
+		}
+		
+		/**
+		 * Whether the only tag is the one the server gives to bookmarks without tags
+		 */
+		protected boolean isUnfiled() {
+			return this.tag_ids.length == 1 && TagTable.getName(this.tag_ids[0]).equals(UNFILED_TAG);
+		}
+		
+		/**
+		 * Get the tag ids in the TagTable, null if there are no tags at all
+		 */
+		public int[] getTagIds() {
+			return this.tag_ids;
 		}
 		
 		public String getCSVTags() {
-			String output = "";
-			String[] atags = this.getTags().split(" ");
-			if (atags.length > 0) {
-				StringBuilder string_builder = new StringBuilder();
-				string_builder.append(atags[0]);
-				for (int i = 1; i < atags.length; i++) {
-					string_builder.append(", ");
-					string_builder.append(atags[i]);
-				}
-				output = string_builder.toString();
+			if (this.csv_tags == null) {
+				this.csv_tags = this.getTags().replace(" ", ", ");
+			}
+			return this.csv_tags;
+		}
+		
+		/**
+		 * Get lower case title, title words and tags
+		 */
+		public String[] getSearchTerms() {
+			if (!this.prepared) {
+				this.prepare();
 			}
-			return output;
+			return this.search_terms;
+		}
+		
+		/**
+		 * Get privacy status, or -1 if unknown
+		 */
+		public int getStatus() {
+			if (!this.prepared) {
+				this.prepare();
+			}
+			return this.status_id;
+		}
+		
+		private void writeObject(ObjectOutputStream output) throws IOException {
+			output.defaultWriteObject();
+			// Tag ids are only valid in this process
+			output.writeObject(this.getRawTags());
+		}
+		
+		private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+			input.defaultReadObject();
+			this.setTags((String) input.readObject());
 		}
 	}
 }
@@ -39,17 +39,18 @@ import android.widget.Toast;
  * only used on handset devices. On tablet-size devices, item details are
  * presented side-by-side with a list of items in a {@link BookmarkListActivity}
  */
-public class BookmarkDetailActivity extends Activity implements ScuttleAPI.DeleteCallback {
+public class BookmarkDetailActivity extends Activity implements ScuttleAPI.DeleteCallback,
+	ScuttleAPI.OfflineCallback {
 	
 	/**
-	 * The bundle extra representing the position of the item in the shared content list.
+	 * The bundle extra representing the URL of the item in the shared content list.
 	 */
-	public static final String ARG_ITEM_POS = "item_pos";
+	public static final String ARG_ITEM_URL = "item_url";
 	
 	/**
-	 * The bookmark's position in the shared content list
+	 * The bookmark's URL in the shared content list
 	 */
-	private int position;
+	private String url;
 	
 	/**
 	 * The bookmark content this activity is presenting.
@@ -64,7 +65,7 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
 		// Show the Up button in the action bar.
 		getActionBar().setDisplayHomeAsUpEnabled(true);
 		
-		this.position = getIntent().getIntExtra(ARG_ITEM_POS, 0);
+		this.url = getIntent().getStringExtra(ARG_ITEM_URL);
 	}
 	
 	@Override
@@ -74,7 +75,12 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
 	}
 	
 	protected void displayBookmark() {
-		this.item = BookmarkContent.getShared().getItem(this.position);
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		this.item = bookmarks == null ? null : bookmarks.getItem(this.url);
+		if (this.item == null) {
+			// Found by a remote search
+			this.item = RemoteSearch.getFound().getItem(this.url);
+		}
 		if (this.item != null) {
 			((TextView) findViewById(R.id.title)).setText(this.item.title);
 			this.setTextOrRemove(R.id.description, this.item.description);
@@ -82,9 +88,9 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
 			((TextView) findViewById(R.id.url)).setText(this.item.url);
 
             //privacy status
-            if (item.status != null) {
+            int status_int = item.getStatus();
+            if (status_int != -1) {
                 TextView status_view = (TextView) findViewById(R.id.status);
-                int status_int = Integer.parseInt(item.status);
                 //set text
                 status_view.setText(getContext().getResources().getStringArray(R.array.status_options)[status_int]);
                 //set icon
@@ -101,6 +107,10 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
                 findViewById(R.id.status).setVisibility(View.GONE);
             }
         }
+		else {
+			// Gone meanwhile, or the collection is not there anymore
+			finish();
+		}
 	}
 	
 	protected void setTextOrRemove(int view_id, String value) {
@@ -132,7 +142,7 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
 				return true;
 			case R.id.edit:
 				Intent intent = new Intent(this, BookmarkEditActivity.class);
-				intent.putExtra(ARG_ITEM_POS, getIntent().getIntExtra(ARG_ITEM_POS, 0));
+				intent.putExtra(ARG_ITEM_URL, this.url);
 				startActivity(intent);
 				return true;
 			case R.id.open:
@@ -174,7 +184,12 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
 	
 	@Override
 	public void onBookmarkDeleted() {
-		BookmarkContent.getShared().removeItem(this.item.url);
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks != null) {
+			bookmarks.removeItem(this.item.url);
+			new BookmarkStore(this).saveAsync(bookmarks);
+		}
+		RemoteSearch.removeFound(this.item.url);
 		Toast.makeText(this, getString(R.string.bookmark_deleted), Toast.LENGTH_SHORT).show();
 		finish();
 	}
@@ -190,6 +205,13 @@ public class BookmarkDetailActivity extends Activity implements ScuttleAPI.Delet
 	    alert.show();
 	}
 
+	@Override
+	public void onOffline() {
+		Outbox.getInstance(this).add(Outbox.DELETE, this.item);
+		Toast.makeText(this, getString(R.string.saved_offline), Toast.LENGTH_LONG).show();
+		finish();
+	}
+
 	@Override
 	public Context getContext() {
 		return this;
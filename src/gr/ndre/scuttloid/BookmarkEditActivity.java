@@ -35,13 +35,24 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class BookmarkEditActivity extends Activity implements OnClickListener, ScuttleAPI.UpdateCallback {
+public class BookmarkEditActivity extends Activity implements OnClickListener, ScuttleAPI.UpdateCallback,
+	ScuttleAPI.OfflineCallback {
+
+	/**
+	 * The bundle extra holding the bookmark itself, used when it is not in the shared content.
+	 */
+	public static final String ARG_ITEM = "item";
 
 	/**
 	 * The bookmark content this activity is editing.
 	 */
 	private BookmarkContent.Item item;
 
+	/**
+	 * Copy holding the changes, put in place of the bookmark once the server accepted it.
+	 */
+	private BookmarkContent.Item edited;
+
     /**
      * Stores an instance of the progress dialog
      */
@@ -56,8 +67,18 @@ public class BookmarkEditActivity extends Activity implements OnClickListener, S
 		getActionBar().setDisplayHomeAsUpEnabled(true);
 		
 		// Fill the form with actual bookmark data
-		int position = getIntent().getIntExtra(BookmarkDetailActivity.ARG_ITEM_POS, 0);
-		this.item = BookmarkContent.getShared().getItem(position);
+		String url = getIntent().getStringExtra(BookmarkDetailActivity.ARG_ITEM_URL);
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks != null) {
+			this.item = bookmarks.getItem(url);
+		}
+		if (this.item == null) {
+			// Found by a remote search
+			this.item = RemoteSearch.getFound().getItem(url);
+		}
+		if (this.item == null) {
+			this.item = (BookmarkContent.Item) getIntent().getSerializableExtra(ARG_ITEM);
+		}
 		if (this.item != null) {
 			((TextView) findViewById(R.id.url)).setText(this.item.url);
 			((TextView) findViewById(R.id.title)).setText(this.item.title);
@@ -108,14 +129,14 @@ public class BookmarkEditActivity extends Activity implements OnClickListener, S
             // Show progress dialog
             this.progressDialog = ProgressDialog.show(this, "", getString(R.string.updating_bookmark), true);
 
-			this.item.title = title;
-			this.item.description = description;
-			this.item.tags = tags;
-			this.item.status = status;
+			// The listed bookmark stays as it is until the update succeeds
+			this.edited = new BookmarkContent.Item();
+			this.edited.url = this.item.url;
+			this.edited.update(title, description, tags, status);
 			
 			// Update the bookmark
 			ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), this);
-			api.updateBookmark(this.item);
+			api.updateBookmark(this.edited);
 		}
 	}
 	
@@ -133,6 +154,14 @@ public class BookmarkEditActivity extends Activity implements OnClickListener, S
 	    alert.show();
 	}
 
+	@Override
+	public void onOffline() {
+		Outbox.getInstance(this).add(Outbox.UPDATE, this.edited);
+		this.progressDialog.dismiss();
+		Toast.makeText(this, getString(R.string.saved_offline), Toast.LENGTH_LONG).show();
+		finish();
+	}
+
 	@Override
 	public Context getContext() {
 		return this;
@@ -140,7 +169,13 @@ public class BookmarkEditActivity extends Activity implements OnClickListener, S
 
 	@Override
 	public void onBookmarkUpdated() {
-		BookmarkContent.getShared().addItemToTop(this.item);
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks != null) {
+			// Edited bookmarks keep their place
+			bookmarks.replaceItem(this.edited);
+			new BookmarkStore(this).saveAsync(bookmarks);
+		}
+		RemoteSearch.updateFound(this.edited);
 
         //close progress dialog
         this.progressDialog.dismiss();
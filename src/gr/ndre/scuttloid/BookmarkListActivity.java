@@ -18,9 +18,19 @@
 
 package gr.ndre.scuttloid;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import gr.ndre.scuttloid.BookmarkContent.Item;
 import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.app.SearchManager;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -29,14 +39,18 @@ import android.content.SharedPreferences;
 import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.view.ContextMenu;
-import android.view.ContextMenu.ContextMenuInfo;
+import android.text.TextUtils;
+import android.util.SparseBooleanArray;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.AbsListView;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.SearchView;
 import android.widget.Toast;
@@ -46,8 +60,15 @@ import android.widget.Toast;
  * presents a list of items, which when touched, lead to a
  * {@link BookmarkDetailActivity} representing item details.
  */
-public class BookmarkListActivity extends ListActivity implements ScuttleAPI.BookmarksCallback,
-	ScuttleAPI.DeleteCallback {
+public class BookmarkListActivity extends ListActivity implements BookmarkSync.Listener,
+	ScuttleAPI.DeleteCallback, ScuttleAPI.OfflineCallback, BulkOperation.Listener, RemoteSearch.Listener {
+
+	protected static final int REQUEST_TAGS = 1;
+	
+	/**
+	 * Milliseconds without typing before the list is searched
+	 */
+	protected static final long SEARCH_DELAY = 200;
 
 	/**
 	 * Container for all bookmarks
@@ -63,13 +84,78 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 	
 	protected String search_query = "";
 	
+	/**
+	 * Whether the rows are shown before the collection is delivered. They can
+	 * not be opened or selected, the other screens need the shared collection.
+	 */
+	protected boolean previewing;
+	
+	/**
+	 * Set when the whole collection is downloaded after the bookmarks of the filter tags
+	 */
+	protected boolean sync_deferred;
+	
+	/**
+	 * When the search query last changed, for the search latency
+	 */
+	protected long search_typed_at;
+	
+	protected Handler handler = new Handler();
+	
+	protected Runnable run_search = new Runnable() {
+		@Override
+		public void run() {
+			if (BookmarkListActivity.this.adapter != null) {
+				BookmarkListActivity.this.adapter.search(BookmarkListActivity.this.search_query,
+						BookmarkListActivity.this.search_typed_at);
+			}
+		}
+	};
+	
+	/**
+	 * Tags the list is restricted to, empty for every bookmark
+	 */
+	protected ArrayList<String> tag_filter = new ArrayList<String>();
+	protected boolean tag_match_all = true;
+	
+	/**
+	 * Bookmarks of each filter tag downloaded alone, shown until the whole collection is there
+	 */
+	protected Map<String, List<BookmarkContent.Item>> tagged_results = new HashMap<String, List<BookmarkContent.Item>>();
+	protected List<ScuttleAPI.Request> tagged_requests = new ArrayList<ScuttleAPI.Request>();
+	
+	/**
+	 * Searches sent to the server when the collection is not downloaded
+	 */
+	protected RemoteSearch remote_search;
+	
+	/**
+	 * Whether the list shows the results of a remote search arriving
+	 */
+	protected boolean remote_streaming;
+	
+	/**
+	 * Progress of the running bulk operation
+	 */
+	protected ProgressDialog bulk_dialog;
+	protected BulkOperation bulk_operation;
+	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_bookmark_list);
 		ListView list = getListView();
-		registerForContextMenu(list);
+		list.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+		list.setMultiChoiceModeListener(new SelectionModeListener());
 		list.setTextFilterEnabled(true);
+		this.remote_search = new RemoteSearch(this, this);
+		
+		// Tags the list was filtered by last time
+		String saved_tags = this.getGlobalPreferences().getString("tagfilter", "").trim();
+		if (!saved_tags.isEmpty()) {
+			this.tag_filter.addAll(Arrays.asList(saved_tags.split(" ")));
+		}
+		this.tag_match_all = this.getGlobalPreferences().getBoolean("tagmatchall", true);
 		
 		String pref_url = getURL();
 		if ("".equals(pref_url)) {
@@ -83,18 +169,66 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 	public void onResume() {
 		super.onResume();
 		
-		// TODO : verify that the bookmarks are not reloaded on orientation change
+		// Follow the sync, which may have started before this activity
+		BookmarkSync sync = BookmarkSync.getInstance(this);
+		sync.addListener(this);
+		
+		// Follow the bulk operation started before a configuration change
+		BulkOperation operation = BulkOperation.getCurrent();
+		if (operation != null) {
+			this.followBulkOperation(operation);
+		}
+		
 		String pref_url = getURL();
 		if (!"".equals(pref_url) && !(this.bookmarks instanceof BookmarkContent)) {
-			this.loadBookmarks();
+			if (this.isRemoteSearch()) {
+				// Only the bookmarks found by searching are kept, never stored on the device
+				this.showBookmarks(RemoteSearch.getFound());
+			}
+			else if (BookmarkContent.getShared() == null) {
+				if (!this.tag_filter.isEmpty() && !sync.isRunning() && !new BookmarkStore(this).exists()) {
+					// Nothing on the device : the few bookmarks of the filter tags first, everything after
+					this.sync_deferred = true;
+					this.fetchTaggedBookmarks();
+				}
+				else {
+					// Cold start : paint from the on-device copy first
+					this.restoreBookmarks();
+					// Or from the few bookmarks of the filter tags
+					this.fetchTaggedBookmarks();
+				}
+			}
+			else {
+				this.showBookmarks(BookmarkContent.getShared());
+				sync.start();
+			}
 		}
 		// Reload bookmarks if we are not showing search results
-		if (this.bookmarks instanceof BookmarkContent) {
-			this.bookmarks = BookmarkContent.getShared();
+		else if (this.bookmarks instanceof BookmarkContent) {
+			this.bookmarks = this.getCollection();
 			this.displayBookmarks();
 		}
 	}
 
+	@Override
+	public void onPause() {
+		super.onPause();
+		BookmarkSync.getInstance(this).removeListener(this);
+		if (this.bulk_operation != null) {
+			this.bulk_dialog.dismiss();
+			this.bulk_dialog = null;
+			if (isFinishing()) {
+				// The requests already sent are still applied, nothing more is reported
+				this.bulk_operation.cancel();
+			}
+			else {
+				// Kept running while the activity is recreated
+				this.bulk_operation.setListener(null);
+			}
+			this.bulk_operation = null;
+		}
+	}
+
 	@Override
 	protected void onNewIntent(Intent intent) {
 		super.onNewIntent(intent);
@@ -109,38 +243,27 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 		}
 	}
 	
-	@Override
-	public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
-		super.onCreateContextMenu(menu, view, menuInfo);
-
-		MenuInflater inflater = getMenuInflater();
-		inflater.inflate(R.menu.list_context_menu, menu);
-	}
-	
-	@Override
-	public boolean onContextItemSelected(MenuItem menu_item) {
-		int position = ((AdapterContextMenuInfo) menu_item.getMenuInfo()).position;
-		final BookmarkContent.Item item;
-		int shared_position = BookmarkContent.getShared().getPosition(this.adapter.getItem(position).url);
+	/**
+	 * Run a single bookmark action of the selection menu
+	 */
+	protected boolean onItemAction(int action_id, final BookmarkContent.Item item) {
 		Intent intent;
-		switch (menu_item.getItemId()) {
+		switch (action_id) {
 			case R.id.edit:
 				intent = new Intent(this, BookmarkEditActivity.class);
-				intent.putExtra(BookmarkDetailActivity.ARG_ITEM_POS, shared_position);
+				intent.putExtra(BookmarkDetailActivity.ARG_ITEM_URL, item.url);
 				startActivity(intent);
 				return true;
 			case R.id.details:
 				intent = new Intent(this, BookmarkDetailActivity.class);
-				intent.putExtra(BookmarkDetailActivity.ARG_ITEM_POS, shared_position);
+				intent.putExtra(BookmarkDetailActivity.ARG_ITEM_URL, item.url);
 				startActivity(intent);
 				return true;
 			case R.id.open:
-				item = this.bookmarks.getItem(position);
 				intent = new Intent(Intent.ACTION_VIEW, Uri.parse(item.url));
 	    		startActivity(intent);
 	    		return true;
 			case R.id.share:
-				item = this.bookmarks.getItem(position);
 				intent = new Intent(Intent.ACTION_SEND);
 				intent.setType("text/plain");
 				intent.putExtra(Intent.EXTRA_SUBJECT, item.title);
@@ -148,7 +271,6 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 	    		startActivity(Intent.createChooser(intent, getString(R.string.share_via)));
     	    	return true;
 			case R.id.delete:
-				item = this.bookmarks.getItem(position);
 				DialogInterface.OnClickListener dialogClickListener = new DialogInterface.OnClickListener() {
 				    @Override
 				    public void onClick(DialogInterface dialog, int which) {
@@ -165,8 +287,139 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 				builder.show();
 				return true;
 			default:
-				return super.onContextItemSelected(menu_item);
+				return false;
+		}
+	}
+	
+	/**
+	 * Get the checked bookmarks
+	 */
+	protected List<BookmarkContent.Item> getSelectedItems() {
+		List<BookmarkContent.Item> selected = new ArrayList<BookmarkContent.Item>();
+		SparseBooleanArray checked = getListView().getCheckedItemPositions();
+		for (int i = 0; i < checked.size(); i++) {
+			if (checked.valueAt(i)) {
+				selected.add(this.adapter.getItem(checked.keyAt(i)));
+			}
+		}
+		return selected;
+	}
+	
+	protected void confirmBulkDelete(final List<BookmarkContent.Item> items) {
+		DialogInterface.OnClickListener dialogClickListener = new DialogInterface.OnClickListener() {
+		    @Override
+		    public void onClick(DialogInterface dialog, int which) {
+		        if (which == DialogInterface.BUTTON_POSITIVE) {
+		            BookmarkListActivity.this.startBulkOperation(BulkOperation.DELETE, items, null);
+		        }
+		    }
+		};
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(R.string.delete);
+		builder.setMessage(getString(R.string.delete_bookmarks_confirm, items.size()));
+		builder.setPositiveButton(android.R.string.yes, dialogClickListener);
+		builder.setNegativeButton(android.R.string.no, dialogClickListener);
+		builder.show();
+	}
+	
+	protected void askTags(final int action, final List<BookmarkContent.Item> items) {
+		final EditText tags_input = new EditText(this);
+		tags_input.setHint(R.string.tags_prompt);
+		DialogInterface.OnClickListener dialogClickListener = new DialogInterface.OnClickListener() {
+		    @Override
+		    public void onClick(DialogInterface dialog, int which) {
+		        String tags = tags_input.getText().toString();
+		        if (which == DialogInterface.BUTTON_POSITIVE && !tags.trim().isEmpty()) {
+		            BookmarkListActivity.this.startBulkOperation(action, items, tags);
+		        }
+		    }
+		};
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle(action == BulkOperation.ADD_TAGS ? R.string.add_tags : R.string.remove_tags);
+		builder.setView(tags_input);
+		builder.setPositiveButton(android.R.string.ok, dialogClickListener);
+		builder.setNegativeButton(android.R.string.cancel, dialogClickListener);
+		builder.show();
+	}
+	
+	protected void startBulkOperation(int action, List<BookmarkContent.Item> items, String tags) {
+		BulkOperation operation = new BulkOperation(this, action, items, this);
+		this.bulk_operation = operation;
+		if (tags != null) {
+			operation.setTags(tags);
+		}
+		this.showBulkDialog(operation);
+		operation.start();
+	}
+	
+	protected void followBulkOperation(BulkOperation operation) {
+		this.bulk_operation = operation;
+		if (!operation.isFinished()) {
+			this.showBulkDialog(operation);
+		}
+		// Reports the result right away if it came while no activity was there
+		operation.setListener(this);
+	}
+	
+	protected void showBulkDialog(final BulkOperation operation) {
+		this.bulk_dialog = new ProgressDialog(this);
+		this.bulk_dialog.setTitle(getString(R.string.updating_bookmarks));
+		this.bulk_dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		this.bulk_dialog.setMax(operation.getTotalCount());
+		this.bulk_dialog.setProgress(operation.getDoneCount());
+		this.bulk_dialog.setCancelable(false);
+		this.bulk_dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+				new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				BookmarkListActivity.this.onBulkCancelled(operation);
+			}
+		});
+		this.bulk_dialog.show();
+	}
+	
+	/**
+	 * Stop sending the remaining requests, the ones already sent are still applied
+	 */
+	protected void onBulkCancelled(BulkOperation operation) {
+		operation.cancel();
+		this.bulk_dialog = null;
+		this.bulk_operation = null;
+		this.bookmarks = this.getCollection();
+		this.displayBookmarks();
+	}
+	
+	@Override
+	public void onBulkProgress(int done, int total) {
+		this.bulk_dialog.setProgress(done);
+	}
+	
+	@Override
+	public void onBulkFinished(BulkOperation operation) {
+		if (this.bulk_dialog != null) {
+			this.bulk_dialog.dismiss();
+			this.bulk_dialog = null;
+		}
+		this.bulk_operation = null;
+		int changed = operation.getSucceededCount();
+		int total = operation.getTotalCount();
+		if (operation.getFailures().isEmpty()) {
+			Toast.makeText(this, getString(R.string.bulk_done, changed, total), Toast.LENGTH_SHORT).show();
+		}
+		else {
+			StringBuilder failed = new StringBuilder();
+			for (Map.Entry<String, String> failure : operation.getFailures().entrySet()) {
+				failed.append(failure.getKey()).append(" : ").append(failure.getValue()).append('\n');
+			}
+			AlertDialog alert = new AlertDialog.Builder(this).create();
+			alert.setMessage(getString(R.string.bulk_failed, changed, total, failed.toString()));
+			alert.show();
+		}
+		if (operation.getOfflineCount() > 0) {
+			Toast.makeText(this, getString(R.string.saved_offline), Toast.LENGTH_LONG).show();
 		}
+		this.bookmarks = this.getCollection();
+		this.displayBookmarks();
 	}
 	
 	protected void onDeleteConfirmed(Item item) {
@@ -191,10 +444,11 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 	    searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
 			@Override
 			public boolean onQueryTextChange(String newText) {
-				if (BookmarkListActivity.this.adapter != null) {
-					BookmarkListActivity.this.adapter.getFilter().filter(newText);
+				if (BookmarkListActivity.this.isRemoteSearch()) {
+					BookmarkListActivity.this.onRemoteQueryChange(newText);
+					return true;
 				}
-				BookmarkListActivity.this.search_query = newText;
+				BookmarkListActivity.this.onQueryChange(newText);
 				return true;
 			}
 			@Override
@@ -212,7 +466,14 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 	public boolean onOptionsItemSelected(MenuItem item) {
 		switch (item.getItemId()) {
 			case R.id.refresh:
-				this.loadBookmarks();
+				if (this.isRemoteSearch()) {
+					// Search again instead of downloading everything
+					TagCache.clear();
+					this.displayBookmarks();
+				}
+				else {
+					this.loadBookmarks();
+				}
 				return true;
 			case R.id.settings:
 				Intent settings_intent = new Intent(this, SettingsActivity.class);
@@ -222,18 +483,67 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 				Intent add_intent = new Intent(this, BookmarkAddActivity.class);
 				startActivity(add_intent);
 				return true;
+			case R.id.browse_tags:
+				if (this.bookmarks != null) {
+					Intent tags_intent = new Intent(this, TagListActivity.class);
+					tags_intent.putExtra(TagListActivity.EXTRA_TAGS, this.tag_filter.toArray(new String[this.tag_filter.size()]));
+					tags_intent.putExtra(TagListActivity.EXTRA_MATCH_ALL, this.tag_match_all);
+					startActivityForResult(tags_intent, REQUEST_TAGS);
+				}
+				return true;
+			case R.id.clear_tags:
+				this.setTagFilter(new String[0], this.tag_match_all);
+				return true;
 		}
 		return super.onOptionsItemSelected(item);
 	}
 	
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		menu.findItem(R.id.clear_tags).setVisible(!this.tag_filter.isEmpty());
+		return super.onPrepareOptionsMenu(menu);
+	}
+	
+	@Override
+	protected void onActivityResult(int request_code, int result_code, Intent data) {
+		super.onActivityResult(request_code, result_code, data);
+		if (request_code == REQUEST_TAGS && result_code == RESULT_OK && data != null) {
+			this.setTagFilter(
+				data.getStringArrayExtra(TagListActivity.EXTRA_TAGS),
+				data.getBooleanExtra(TagListActivity.EXTRA_MATCH_ALL, true)
+			);
+		}
+	}
+	
+	protected void setTagFilter(String[] tags, boolean match_all) {
+		this.tag_filter.clear();
+		if (tags != null) {
+			this.tag_filter.addAll(Arrays.asList(tags));
+		}
+		this.tag_match_all = match_all;
+		this.getGlobalPreferences().edit()
+			.putString("tagfilter", TextUtils.join(" ", this.tag_filter))
+			.putBoolean("tagmatchall", match_all)
+			.apply();
+		invalidateOptionsMenu();
+		if (this.bookmarks != null) {
+			this.displayBookmarks();
+		}
+		else {
+			this.fetchTaggedBookmarks();
+		}
+	}
+	
 	@Override
 	public void onListItemClick(ListView listView, View view, int position, long item_id) {
 		super.onListItemClick(listView, view, position, item_id);
+		if (this.previewing) {
+			return;
+		}
 
 		// Start the detail activity for the selected item.
 		Intent detail_intent = new Intent(this, BookmarkDetailActivity.class);
-		int shared_position = BookmarkContent.getShared().getPosition(this.adapter.getItem(position).url);
-		detail_intent.putExtra(BookmarkDetailActivity.ARG_ITEM_POS, shared_position);
+		detail_intent.putExtra(BookmarkDetailActivity.ARG_ITEM_URL, this.adapter.getItem(position).url);
 		startActivity(detail_intent);
 	}
 	
@@ -246,18 +556,148 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 		View progress_bar = findViewById(R.id.progress_bar);
 		progress_bar.setVisibility(View.VISIBLE);
 		
+		if (this.bookmarks == null) {
+			// Drop any partial list streamed by a previous attempt
+			this.adapter = null;
+		}
+		
 		// Get the bookmarks
-		ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), this);
-		api.getBookmarks();
+		BookmarkSync.getInstance(this).start();
+	}
+	
+	/**
+	 * Download the bookmarks of the filter tags only, much smaller than the whole collection
+	 */
+	protected void fetchTaggedBookmarks() {
+		this.cancelTaggedBookmarks();
+		if (this.tag_filter.isEmpty()) {
+			this.startDeferredSync();
+			return;
+		}
+		ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), null);
+		TaggedFetch tagged_callback = new TaggedFetch();
+		for (String tag : new ArrayList<String>(this.tag_filter)) {
+			this.tagged_requests.add(api.getTaggedBookmarks(tag, tagged_callback));
+		}
+	}
+	
+	protected void cancelTaggedBookmarks() {
+		for (ScuttleAPI.Request request : this.tagged_requests) {
+			request.cancel();
+		}
+		this.tagged_requests.clear();
+		this.tagged_results.clear();
+	}
+	
+	/**
+	 * Download the whole collection, once the bookmarks of the filter tags are shown or failed
+	 */
+	protected void startDeferredSync() {
+		if (this.sync_deferred) {
+			this.sync_deferred = false;
+			BookmarkSync.getInstance(this).start();
+		}
+	}
+	
+	protected void onTaggedBookmarksReceived(String tag, List<BookmarkContent.Item> items) {
+		if (this.bookmarks != null || !this.tag_filter.contains(tag)) {
+			// The whole collection arrived first, or the filter changed
+			return;
+		}
+		this.tagged_results.put(tag, items);
+		if (this.tagged_results.size() < this.tag_filter.size()) {
+			return;
+		}
+		
+		// Combine the tags the same way as the local filter
+		Map<String, BookmarkContent.Item> matches = new LinkedHashMap<String, BookmarkContent.Item>();
+		for (BookmarkContent.Item item : this.tagged_results.get(this.tag_filter.get(0))) {
+			matches.put(item.url, item);
+		}
+		for (int i = 1; i < this.tag_filter.size(); i++) {
+			List<BookmarkContent.Item> tag_items = this.tagged_results.get(this.tag_filter.get(i));
+			if (this.tag_match_all) {
+				Set<String> tag_urls = new HashSet<String>();
+				for (BookmarkContent.Item item : tag_items) {
+					tag_urls.add(item.url);
+				}
+				matches.keySet().retainAll(tag_urls);
+			}
+			else {
+				for (BookmarkContent.Item item : tag_items) {
+					if (!matches.containsKey(item.url)) {
+						matches.put(item.url, item);
+					}
+				}
+			}
+		}
+		
+		this.adapter = new BookmarkListAdapter(this, R.id.title, new ArrayList<BookmarkContent.Item>(matches.values()));
+		setListAdapter(this.adapter);
+		// Like streamed rows, shown before the shared collection exists
+		this.previewing = true;
+		if (!this.search_query.isEmpty()) {
+			this.adapter.getFilter().filter(this.search_query);
+		}
+		
+		// Remove the progress bar
+		View progress_bar = findViewById(R.id.progress_bar);
+		progress_bar.setVisibility(View.GONE);
+		// Display list
+		View list = findViewById(android.R.id.list);
+		list.setVisibility(View.VISIBLE);
+		
+		this.startDeferredSync();
+	}
+	
+	/**
+	 * Read the bookmarks saved on the device during the last fetch, then refresh them
+	 */
+	protected void restoreBookmarks() {
+		// Ensure list is invisible
+		View list = findViewById(android.R.id.list);
+		list.setVisibility(View.GONE);
+		
+		// Ensure the progress bar is visible
+		View progress_bar = findViewById(R.id.progress_bar);
+		progress_bar.setVisibility(View.VISIBLE);
+		
+		BookmarkSync.getInstance(this).restore();
 	}
 	
 	protected void displayBookmarks() {
+		if (this.bookmarks == null) {
+			// Still waiting for the collection
+			return;
+		}
+		if (this.isRemoteSearch() && !this.search_query.trim().isEmpty()) {
+			// The results come from the server
+			this.remote_search.search(this.search_query);
+			return;
+		}
+		this.remote_search.cancel();
+		this.remote_streaming = false;
+		
 		// Set the list adapter
-		this.adapter = new BookmarkListAdapter(
-				this,
-				R.id.title,
-				this.bookmarks.getItems()
-		);
+		if (this.tag_filter.isEmpty()) {
+			this.adapter = new BookmarkListAdapter(
+					this,
+					R.id.title,
+					this.bookmarks
+			);
+			getActionBar().setSubtitle(null);
+		}
+		else {
+			// Only the tagged bookmarks are listed, and searched
+			this.adapter = new BookmarkListAdapter(
+					this,
+					R.id.title,
+					this.bookmarks.findByTags(this.tag_filter, this.tag_match_all)
+			);
+			String tags = TextUtils.join(", ", this.tag_filter);
+			int subtitle = this.tag_match_all ? R.string.tag_filter_all : R.string.tag_filter_any;
+			getActionBar().setSubtitle(getString(subtitle, tags));
+		}
 		
 		// Display now if there is no search term
 		if (this.search_query.isEmpty()) {
@@ -274,10 +714,107 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 		}
 	}
 	
+	/**
+	 * Search the list once the user stops typing, at once when the query is cleared
+	 */
+	protected void onQueryChange(String query) {
+		this.search_query = query;
+		this.search_typed_at = SystemClock.elapsedRealtime();
+		this.handler.removeCallbacks(this.run_search);
+		if (query.isEmpty()) {
+			this.run_search.run();
+		}
+		else {
+			this.handler.postDelayed(this.run_search, SEARCH_DELAY);
+		}
+	}
+	
+	protected void onRemoteQueryChange(String query) {
+		boolean was_searching = !this.search_query.trim().isEmpty();
+		this.search_query = query;
+		if (this.bookmarks == null) {
+			return;
+		}
+		if (!query.trim().isEmpty()) {
+			this.remote_search.search(query);
+		}
+		else if (was_searching) {
+			// Back to the bookmarks found so far
+			this.displayBookmarks();
+		}
+	}
+	
+	@Override
+	public void onSearchProgress(List<BookmarkContent.Item> batch) {
+		this.keepFoundBookmarks(batch);
+		if (!this.remote_streaming) {
+			this.remote_streaming = true;
+			this.adapter = new BookmarkListAdapter(this, R.id.title, new ArrayList<BookmarkContent.Item>());
+			setListAdapter(this.adapter);
+		}
+		this.adapter.appendItems(batch);
+	}
+	
+	@Override
+	public void onSearchResults(String query, List<BookmarkContent.Item> items) {
+		this.remote_streaming = false;
+		this.keepFoundBookmarks(items);
+		this.adapter = new BookmarkListAdapter(this, R.id.title, new ArrayList<BookmarkContent.Item>(items));
+		setListAdapter(this.adapter);
+	}
+	
+	/**
+	 * Keep the bookmarks found, so they can be opened and edited as soon as they are listed
+	 */
+	protected void keepFoundBookmarks(List<BookmarkContent.Item> items) {
+		for (BookmarkContent.Item item : items) {
+			if (this.bookmarks.getItem(item.url) == null) {
+				this.bookmarks.addItem(item);
+			}
+		}
+	}
+	
+	@Override
+	public void onSearchError(String message) {
+		this.remote_streaming = false;
+		this.onAPIError(message);
+	}
+	
+	@Override
+	public void onBookmarksAvailable(BookmarkContent new_bookmarks) {
+		this.showBookmarks(new_bookmarks);
+	}
+	
+	@Override
+	public void onBookmarksProgress(List<BookmarkContent.Item> batch) {
+		// Stream into the list only when there is nothing displayed yet
+		if (this.bookmarks != null || !this.search_query.isEmpty() || !this.tag_filter.isEmpty()) {
+			return;
+		}
+		if (this.adapter == null) {
+			this.adapter = new BookmarkListAdapter(this, R.id.title, new ArrayList<BookmarkContent.Item>());
+			setListAdapter(this.adapter);
+			this.previewing = true;
+			
+			// Remove the progress bar
+			View progress_bar = findViewById(R.id.progress_bar);
+			progress_bar.setVisibility(View.GONE);
+			// Display list
+			View list = findViewById(android.R.id.list);
+			list.setVisibility(View.VISIBLE);
+		}
+		this.adapter.appendItems(batch);
+	}
+	
 	@Override
-	public void onBookmarksReceived(BookmarkContent new_bookmarks) {
+	public void onSyncError(String message) {
+		this.onAPIError(message);
+	}
+	
+	protected void showBookmarks(BookmarkContent new_bookmarks) {
 		this.bookmarks = new_bookmarks;
-		BookmarkContent.setShared(new_bookmarks);
+		this.previewing = false;
+		this.cancelTaggedBookmarks();
 		
 		// Remove the progress bar
 		View progress_bar = findViewById(R.id.progress_bar);
@@ -291,9 +828,22 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 	
 	@Override
 	public void onBookmarkDeleted() {
-		BookmarkContent.getShared().removeItem(this.bookmark_to_delete.url);
+		BookmarkContent shared = BookmarkContent.getShared();
+		if (shared != null) {
+			shared.removeItem(this.bookmark_to_delete.url);
+			new BookmarkStore(this).saveAsync(shared);
+		}
+		RemoteSearch.removeFound(this.bookmark_to_delete.url);
 		Toast.makeText(this, getString(R.string.bookmark_deleted), Toast.LENGTH_SHORT).show();
-		this.bookmarks = BookmarkContent.getShared();
+		this.bookmarks = this.getCollection();
+		this.displayBookmarks();
+	}
+	
+	@Override
+	public void onOffline() {
+		Outbox.getInstance(this).add(Outbox.DELETE, this.bookmark_to_delete);
+		Toast.makeText(this, getString(R.string.saved_offline), Toast.LENGTH_LONG).show();
+		this.bookmarks = this.getCollection();
 		this.displayBookmarks();
 	}
 	
@@ -315,6 +865,24 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 		return this;
 	}
 	
+	/**
+	 * Bookmarks the list is made of : the ones found on the server in remote
+	 * search mode, the shared collection otherwise
+	 */
+	protected BookmarkContent getCollection() {
+		if (this.isRemoteSearch()) {
+			return RemoteSearch.getFound();
+		}
+		return BookmarkContent.getShared();
+	}
+	
+	/**
+	 * Whether searches are sent to the server instead of downloading the collection
+	 */
+	protected boolean isRemoteSearch() {
+		return this.getGlobalPreferences().getBoolean("remotesearch", false);
+	}
+	
 	public String getURL() {
 		return this.getGlobalPreferences().getString("url", "");
 	}
@@ -323,4 +891,95 @@ public class BookmarkListActivity extends ListActivity implements ScuttleAPI.Boo
 		return PreferenceManager.getDefaultSharedPreferences(this.getBaseContext());
 	}
 	
+	/**
+	 * Receives the bookmarks of each filter tag. Errors are left to the
+	 * download of the whole collection, started right away.
+	 */
+	protected class TaggedFetch implements ScuttleAPI.TaggedCallback {
+		
+		@Override
+		public void onTaggedBookmarksReceived(String tag, List<BookmarkContent.Item> items) {
+			BookmarkListActivity.this.onTaggedBookmarksReceived(tag, items);
+		}
+		
+		@Override
+		public void onAPIError(String message) {
+			// Reported by the download of the whole collection, if it fails too
+			BookmarkListActivity.this.startDeferredSync();
+		}
+		
+		@Override
+		public Context getContext() {
+			return BookmarkListActivity.this;
+		}
+	}
+	
+	/**
+	 * Multiple selection of bookmarks, started with a long press
+	 */
+	protected class SelectionModeListener implements AbsListView.MultiChoiceModeListener {
+		
+		@Override
+		public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+			if (BookmarkListActivity.this.previewing) {
+				return false;
+			}
+			MenuInflater inflater = mode.getMenuInflater();
+			inflater.inflate(R.menu.list_context_menu, menu);
+			inflater.inflate(R.menu.list_selection_menu, menu);
+			return true;
+		}
+		
+		@Override
+		public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+			// Single bookmark actions
+			boolean single = getListView().getCheckedItemCount() == 1;
+			menu.findItem(R.id.details).setVisible(single);
+			menu.findItem(R.id.edit).setVisible(single);
+			menu.findItem(R.id.open).setVisible(single);
+			menu.findItem(R.id.share).setVisible(single);
+			return true;
+		}
+		
+		@Override
+		public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+			mode.setTitle(getString(R.string.selected_count, getListView().getCheckedItemCount()));
+			mode.invalidate();
+		}
+		
+		@Override
+		public boolean onActionItemClicked(ActionMode mode, MenuItem menu_item) {
+			List<BookmarkContent.Item> selected = BookmarkListActivity.this.getSelectedItems();
+			if (selected.isEmpty()) {
+				return false;
+			}
+			switch (menu_item.getItemId()) {
+				case R.id.add_tags:
+					BookmarkListActivity.this.askTags(BulkOperation.ADD_TAGS, selected);
+					break;
+				case R.id.remove_tags:
+					BookmarkListActivity.this.askTags(BulkOperation.REMOVE_TAGS, selected);
+					break;
+				case R.id.delete:
+					if (selected.size() > 1) {
+						BookmarkListActivity.this.confirmBulkDelete(selected);
+						break;
+					}
+					// Same as the other single bookmark actions
+				default:
+					if (!BookmarkListActivity.this.onItemAction(menu_item.getItemId(), selected.get(0))) {
+						return false;
+					}
+					break;
+			}
+			mode.finish();
+			return true;
+		}
+		
+		@Override
+		public void onDestroyActionMode(ActionMode mode) {
+			// Nothing to do
+		}
+	}
+	
 }
@@ -20,6 +20,8 @@ package gr.ndre.scuttloid;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -29,14 +31,43 @@ import android.widget.Filterable;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	implements Filterable {
 
+	protected static final String TAG = "BookmarkListAdapter";
+	
+	/**
+	 * Items looked at between two checks for a newer search
+	 */
+	protected static final int CANCEL_CHECK_INTERVAL = 256;
+
 	protected ArrayList<BookmarkContent.Item> bookmarks;
 	protected ArrayList<BookmarkContent.Item> orig_bookmarks = new ArrayList<BookmarkContent.Item>();
 	protected Filter filter;
 	
+	/**
+	 * Collection the list was built from, searched through its index
+	 */
+	protected BookmarkContent content;
+	
+	/**
+	 * Whether a search is currently applied to the list
+	 */
+	protected boolean filtered;
+	
+	/**
+	 * Number of the latest search, older ones stop when they see it changed
+	 */
+	protected volatile int search_generation;
+	
+	/**
+	 * When the latest search was typed, and the searches dropped since the last results
+	 */
+	protected long search_typed_at;
+	protected int searches_superseded;
+	
 	private final Object lock = new Object();
 
 	public BookmarkListAdapter(Context context, int textViewResourceId, ArrayList<BookmarkContent.Item> bookmark_list) {
@@ -45,6 +76,39 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
 		this.orig_bookmarks = new ArrayList<BookmarkContent.Item>(bookmark_list);
 	}
 
+	public BookmarkListAdapter(Context context, int textViewResourceId, BookmarkContent bookmark_content) {
+		this(context, textViewResourceId, bookmark_content.getItems());
+		this.content = bookmark_content;
+	}
+
+	/**
+	 * Add bookmarks at the end of the unfiltered list
+	 */
+	public void appendItems(List<BookmarkContent.Item> items) {
+		synchronized (this.lock) {
+			this.orig_bookmarks.addAll(items);
+		}
+		if (this.filter != null) {
+			((BookmarkFilter) this.filter).resetResults();
+		}
+		// Search results are left untouched until the next search
+		if (!this.filtered) {
+			this.bookmarks.addAll(items);
+			notifyDataSetChanged();
+		}
+	}
+
+	/**
+	 * Search the list, dropping the searches still running
+	 * 
+	 * @param typed_at time the query was typed, from SystemClock.elapsedRealtime()
+	 */
+	public void search(CharSequence query, long typed_at) {
+		this.search_generation++;
+		this.search_typed_at = typed_at;
+		this.getFilter().filter(query);
+	}
+
 	@Override
 	public int getCount() {
 		return this.bookmarks.size();
@@ -92,14 +156,14 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
                 tags_view.setText("");
             }
 			else {
-				tags_view.setText(item.getCSVTags());
+				tags_view.setText(tags);
 				tags_view.setVisibility(View.VISIBLE);
 			}
 
             // privacy status
             TextView status_view = (TextView) view.findViewById(R.id.status);
-            if (item.status != null) {
-                int status_int = Integer.parseInt(item.status);
+            int status_int = item.getStatus();
+            if (status_int != -1) {
                 // set icon
                 int status_icon_res = 0;
                 if( status_int == 1 ) { //shared
@@ -122,11 +186,36 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
 
 	protected class BookmarkFilter extends Filter {
 
+		/**
+		 * Previous search prefix and its results, only used by the filtering thread
+		 */
+		protected String last_prefix;
+		protected ArrayList<BookmarkContent.Item> last_results;
+
+		/**
+		 * Set when the list changed since the previous search
+		 */
+		protected volatile boolean stale;
+
+		/**
+		 * Forget the previous search, forcing the next one to look at the whole list
+		 */
+		public void resetResults() {
+			this.stale = true;
+		}
+
 		@Override
 		@SuppressLint("DefaultLocale")
 		protected FilterResults performFiltering(CharSequence prefix) {
 			// Initiate our results object
-			FilterResults results = new FilterResults();
+			SearchResults results = new SearchResults();
+			results.generation = BookmarkListAdapter.this.search_generation;
+			results.started_at = SystemClock.elapsedRealtime();
+
+			if (this.stale) {
+				this.stale = false;
+				this.last_results = null;
+			}
 
 			// If the adapter array is empty, check the actual items array and use it
 			if (BookmarkListAdapter.this.orig_bookmarks == null) {
@@ -136,6 +225,8 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
 			}
 
 			if (prefix == null || prefix.length() == 0) {
+				this.last_prefix = null;
+				this.last_results = null;
 				// No prefix is sent to filter by so we're going to send back
 				// the original array
 				ArrayList<BookmarkContent.Item> list;
@@ -149,20 +240,29 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
 				// Compare lower case strings
 				String prefixString = prefix.toString().toLowerCase(Locale.getDefault());
 
-				ArrayList<BookmarkContent.Item> values;
-				synchronized (BookmarkListAdapter.this.lock) {
-					values = new ArrayList<BookmarkContent.Item>(BookmarkListAdapter.this.orig_bookmarks);
+				ArrayList<BookmarkContent.Item> newValues;
+				if (this.last_results != null && prefixString.startsWith(this.last_prefix)) {
+					// The user typed more : only the previous matches can still match
+					newValues = this.filterItems(this.last_results, prefixString, results.generation);
 				}
-
-				final int count = values.size();
-				final ArrayList<BookmarkContent.Item> newValues = new ArrayList<BookmarkContent.Item>();
-
-				for (int i = 0; i < count; i++) {
-					final BookmarkContent.Item item = values.get(i);
-					if (isIncluded(item, prefixString)) {
-						newValues.add(item);
+				else if (BookmarkListAdapter.this.content != null) {
+					// Use the index when the whole collection is displayed
+					newValues = BookmarkListAdapter.this.content.search(prefixString);
+				}
+				else {
+					ArrayList<BookmarkContent.Item> values;
+					synchronized (BookmarkListAdapter.this.lock) {
+						values = new ArrayList<BookmarkContent.Item>(BookmarkListAdapter.this.orig_bookmarks);
 					}
+					newValues = this.filterItems(values, prefixString, results.generation);
+				}
+				if (newValues == null || results.generation != BookmarkListAdapter.this.search_generation) {
+					// A newer search replaces this one, keep the previous results for it
+					return results;
 				}
+				this.last_prefix = prefixString;
+				this.last_results = newValues;
+
 				// Set and return
 				results.values = newValues;
 				results.count = newValues.size();
@@ -170,40 +270,49 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
 			return results;
 		}
 
-		protected boolean isIncluded(BookmarkContent.Item item, String prefix) {
-			final String title = item.title.toLowerCase(Locale.getDefault());
-			final String tags = item.tags.toLowerCase(Locale.getDefault());
+		/**
+		 * Get the items matching the prefix, or null if a newer search started meanwhile
+		 */
+		protected ArrayList<BookmarkContent.Item> filterItems(ArrayList<BookmarkContent.Item> values, String prefix, int generation) {
+			final int count = values.size();
+			final ArrayList<BookmarkContent.Item> newValues = new ArrayList<BookmarkContent.Item>();
 
-			// First match against the whole, non-splitted value
-			if (title.startsWith(prefix)) {
-				return true;
-			}
-
-			// Match against each word in the title
-			final String[] words = title.split(" ");
-			final int wordCount = words.length;
-			for (int k = 0; k < wordCount; k++) {
-				if (words[k].startsWith(prefix)) {
-					return true;
+			for (int i = 0; i < count; i++) {
+				if (i % CANCEL_CHECK_INTERVAL == 0 && generation != BookmarkListAdapter.this.search_generation) {
+					return null;
+				}
+				final BookmarkContent.Item item = values.get(i);
+				if (isIncluded(item, prefix)) {
+					newValues.add(item);
 				}
 			}
+			return newValues;
+		}
 
-			// Match against each tag
-			final String[] tag_list = tags.split(" ");
-			final int tagCount = tag_list.length;
-			for (int k = 0; k < tagCount; k++) {
-				if (tag_list[k].startsWith(prefix)) {
+		protected boolean isIncluded(BookmarkContent.Item item, String prefix) {
+			// Match against the whole title, each word in the title and each tag
+			final String[] terms = item.getSearchTerms();
+			final int termCount = terms.length;
+			for (int k = 0; k < termCount; k++) {
+				if (terms[k].startsWith(prefix)) {
 					return true;
 				}
 			}
-
 			return false;
 		}
 
 		@Override
 		@SuppressWarnings("unchecked")
 		protected void publishResults(CharSequence prefix, FilterResults results) {
+			SearchResults search_results = (SearchResults) results;
+			if (search_results.values == null || search_results.generation != BookmarkListAdapter.this.search_generation) {
+				// Superseded while running or waiting to be shown
+				BookmarkListAdapter.this.searches_superseded++;
+				return;
+			}
+			this.logLatency(prefix, search_results);
 			BookmarkListAdapter.this.bookmarks = (ArrayList<BookmarkContent.Item>) results.values;
+			BookmarkListAdapter.this.filtered = prefix != null && prefix.length() > 0;
 
 			if (results.count > 0) {
 				notifyDataSetChanged();
@@ -216,6 +325,26 @@ public class BookmarkListAdapter extends ArrayAdapter<BookmarkContent.Item>	impl
 			notifyDataSetChanged();
 		}
 
+		protected void logLatency(CharSequence prefix, SearchResults results) {
+			long now = SystemClock.elapsedRealtime();
+			long typed_at = BookmarkListAdapter.this.search_typed_at;
+			if (Log.isLoggable(TAG, Log.DEBUG) && typed_at > 0) {
+				Log.d(TAG, "Search \"" + prefix + "\" : " + results.count + " results "
+						+ (now - typed_at) + " ms after typing, "
+						+ (now - results.started_at) + " ms filtering, "
+						+ BookmarkListAdapter.this.searches_superseded + " searches superseded");
+			}
+			BookmarkListAdapter.this.searches_superseded = 0;
+		}
+
+		/**
+		 * Results of a search, with the search they belong to
+		 */
+		protected class SearchResults extends FilterResults {
+			protected int generation;
+			protected long started_at;
+		}
+
 	}
 
 }
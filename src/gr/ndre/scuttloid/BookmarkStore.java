@@ -0,0 +1,220 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+
+/**
+ * On-device copy of the bookmark collection, written after each
+ * successful fetch and read back at startup.
+ */
+public class BookmarkStore {
+
+	protected static final String FILE_NAME = "bookmarks.bin";
+	protected static final int VERSION = 3;
+	protected static final int BUFFER_SIZE = 8192;
+
+	protected File file;
+
+	/**
+	 * Identifies the account the stored bookmarks belong to
+	 */
+	protected String account;
+
+	public BookmarkStore(Context context) {
+		this.file = new File(context.getFilesDir(), FILE_NAME);
+		this.account = getAccount(PreferenceManager.getDefaultSharedPreferences(context));
+	}
+
+	/**
+	 * Identify the account set in the preferences
+	 */
+	public static String getAccount(SharedPreferences preferences) {
+		return preferences.getString("url", "") + "\n" + preferences.getString("username", "");
+	}
+
+	/**
+	 * Whether bookmarks were stored, possibly for another account
+	 */
+	public boolean exists() {
+		return this.file.exists();
+	}
+
+	/**
+	 * Read the stored bookmarks, or return null if there are none for the current account
+	 */
+	public BookmarkContent load() {
+		if (!this.file.exists()) {
+			return null;
+		}
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), BUFFER_SIZE));
+			if (input.readInt() != VERSION || !this.account.equals(readString(input))) {
+				return null;
+			}
+			BookmarkContent content = new BookmarkContent();
+			content.setUpdateTime(readString(input));
+			content.setValidators(readString(input), readString(input));
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				BookmarkContent.Item item = new BookmarkContent.Item();
+				item.url = readString(input);
+				item.title = readString(input);
+				item.description = readString(input);
+				item.setTags(readString(input));
+				item.status = readString(input);
+				content.addItem(item);
+			}
+			return content;
+		}
+		catch (IOException e) {
+			// A truncated or corrupted file is treated as missing
+			return null;
+		}
+		finally {
+			closeQuietly(input);
+		}
+	}
+
+	/**
+	 * Write the given bookmarks, replacing the previous copy
+	 */
+	public void save(List<BookmarkContent.Item> items, String update_time, String etag, String last_modified) {
+		// Write to a temporary file first so that a crash never leaves a partial store
+		File temp_file = new File(this.file.getPath() + ".tmp");
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp_file), BUFFER_SIZE));
+			output.writeInt(VERSION);
+			writeString(output, this.account);
+			writeString(output, update_time);
+			writeString(output, etag);
+			writeString(output, last_modified);
+			output.writeInt(items.size());
+			for (BookmarkContent.Item item : items) {
+				writeString(output, item.url);
+				writeString(output, item.title);
+				writeString(output, item.description);
+				writeString(output, item.getRawTags());
+				writeString(output, item.status);
+			}
+			output.close();
+			output = null;
+			if (!temp_file.renameTo(this.file)) {
+				temp_file.delete();
+			}
+		}
+		catch (IOException e) {
+			temp_file.delete();
+		}
+		finally {
+			closeQuietly(output);
+		}
+	}
+
+	/**
+	 * Write the given bookmarks in the background
+	 */
+	public void saveAsync(BookmarkContent content) {
+		if (content == null) {
+			return;
+		}
+		// Take a snapshot now, the collection and its validators may change while we write
+		final List<BookmarkContent.Item> items = content.getItems();
+		final String update_time = content.getUpdateTime();
+		final String etag = content.getETag();
+		final String last_modified = content.getLastModified();
+		new AsyncTask<Void, Void, Void>() {
+			@Override
+			protected Void doInBackground(Void... params) {
+				BookmarkStore.this.save(items, update_time, etag, last_modified);
+				return null;
+			}
+		}.execute();
+	}
+
+	/**
+	 * Read the stored bookmarks in the background
+	 */
+	public void loadAsync(final LoadCallback callback) {
+		new AsyncTask<Void, Void, BookmarkContent>() {
+			@Override
+			protected BookmarkContent doInBackground(Void... params) {
+				return BookmarkStore.this.load();
+			}
+
+			@Override
+			protected void onPostExecute(BookmarkContent content) {
+				callback.onBookmarksLoaded(content);
+			}
+		}.execute();
+	}
+
+	protected static String readString(DataInputStream input) throws IOException {
+		int length = input.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	protected static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+		}
+		else {
+			byte[] bytes = value.getBytes("UTF-8");
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+
+	protected static void closeQuietly(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			}
+			catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+
+	public interface LoadCallback {
+		void onBookmarksLoaded(BookmarkContent bookmarks);
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Process-wide owner of bookmark fetches. Results are written to the
+ * shared BookmarkContent and to the on-device store, then announced to
+ * the registered listeners. An activity being recreated or paused
+ * never interrupts or repeats a download.
+ */
+public class BookmarkSync implements ScuttleAPI.SyncCallback, ScuttleAPI.BookmarksProgressCallback,
+	BookmarkStore.LoadCallback {
+
+	protected static BookmarkSync instance;
+
+	/**
+	 * Application context, outliving the activities
+	 */
+	protected Context context;
+
+	protected List<Listener> listeners = new ArrayList<Listener>();
+
+	protected boolean running;
+
+	/**
+	 * Get the shared instance
+	 */
+	public static BookmarkSync getInstance(Context context) {
+		if (instance == null) {
+			instance = new BookmarkSync(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	protected BookmarkSync(Context app_context) {
+		this.context = app_context;
+	}
+
+	public void addListener(Listener listener) {
+		if (!this.listeners.contains(listener)) {
+			this.listeners.add(listener);
+		}
+	}
+
+	public void removeListener(Listener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Whether a restore or a fetch is in progress
+	 */
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Read the bookmarks stored on the device, then bring them up to date
+	 */
+	public void restore() {
+		if (this.running) {
+			return;
+		}
+		this.running = true;
+		new BookmarkStore(this.context).loadAsync(this);
+	}
+
+	/**
+	 * Bring the shared bookmarks up to date with the server
+	 */
+	public void start() {
+		if (this.running) {
+			return;
+		}
+		this.running = true;
+		this.fetch();
+	}
+
+	protected void fetch() {
+		// Send the changes made offline first
+		Outbox.getInstance(this.context).replay();
+		ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), this);
+		api.syncBookmarks(BookmarkContent.getShared());
+	}
+
+	@Override
+	public void onBookmarksLoaded(BookmarkContent stored_bookmarks) {
+		if (stored_bookmarks != null && BookmarkContent.getShared() == null) {
+			BookmarkContent.setShared(stored_bookmarks);
+			for (Listener listener : this.getListeners()) {
+				listener.onBookmarksAvailable(stored_bookmarks);
+			}
+		}
+		this.fetch();
+	}
+
+	@Override
+	public void onBookmarksProgress(List<BookmarkContent.Item> batch) {
+		for (Listener listener : this.getListeners()) {
+			listener.onBookmarksProgress(batch);
+		}
+	}
+
+	@Override
+	public void onBookmarksReceived(BookmarkContent bookmarks) {
+		this.running = false;
+		// Keep showing the changes not sent yet
+		Outbox.getInstance(this.context).applyTo(bookmarks);
+		BookmarkContent.setShared(bookmarks);
+		new BookmarkStore(this.context).saveAsync(bookmarks);
+		for (Listener listener : this.getListeners()) {
+			listener.onBookmarksAvailable(bookmarks);
+		}
+	}
+
+	@Override
+	public void onBookmarksUnchanged() {
+		this.running = false;
+		for (Listener listener : this.getListeners()) {
+			listener.onBookmarksAvailable(BookmarkContent.getShared());
+		}
+	}
+
+	@Override
+	public void onAPIError(String message) {
+		this.running = false;
+		for (Listener listener : this.getListeners()) {
+			listener.onSyncError(message);
+		}
+	}
+
+	@Override
+	public Context getContext() {
+		return this.context;
+	}
+
+	/**
+	 * Copy of the listeners, which may unregister while being notified
+	 */
+	protected List<Listener> getListeners() {
+		return new ArrayList<Listener>(this.listeners);
+	}
+
+	protected SharedPreferences getGlobalPreferences() {
+		return PreferenceManager.getDefaultSharedPreferences(this.context);
+	}
+
+	public interface Listener {
+		void onBookmarksProgress(List<BookmarkContent.Item> batch);
+		void onBookmarksAvailable(BookmarkContent bookmarks);
+		void onSyncError(String message);
+	}
+
+}
@@ -18,29 +18,146 @@
 
 package gr.ndre.scuttloid;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
 import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
 
 
-public class BookmarksXMLHandler extends DefaultHandler {
+public class BookmarksXMLHandler extends DefaultHandler implements APITask.ProgressiveHandler,
+	APITask.StreamParser {
+	
+	/**
+	 * Number of bookmarks parsed before publishing them
+	 */
+	public static final int BATCH_SIZE = 200;
 	
 	public BookmarkContent bookmarks = new BookmarkContent();
 	
+	protected APITask task;
+	
+	protected ArrayList<BookmarkContent.Item> batch = new ArrayList<BookmarkContent.Item>(BATCH_SIZE);
+	
+	/**
+	 * Attribute count of the post the positions were looked up on, -1 before the first one
+	 */
+	protected int attribute_count = -1;
+	
+	/**
+	 * Positions of the post attributes, -1 when missing
+	 */
+	protected int href_index = -1;
+	protected int description_index = -1;
+	protected int tag_index = -1;
+	protected int extended_index = -1;
+	protected int status_index = -1;
+	
+	@Override
+	public void setTask(APITask api_task) {
+		this.task = api_task;
+	}
+	
 	public BookmarkContent getBookmarks() {
 		return this.bookmarks;
 	}
 	
+	/**
+	 * Read the posts with a pull parser. The attribute positions are looked up
+	 * on the first post and reused while the following posts have the same layout.
+	 */
 	@Override
-	public void startElement(String uri, String localName, String name, Attributes attributes) throws SAXException {
-		if ("post".equalsIgnoreCase(localName)) {
-			BookmarkContent.Item bookmark = new BookmarkContent.Item();
-			bookmark.url = attributes.getValue("href");
-			bookmark.title = attributes.getValue("description");
-			bookmark.tags = attributes.getValue("tag");
-			bookmark.description = attributes.getValue("extended");
-            bookmark.status = attributes.getValue("status");
-            this.bookmarks.addItem(bookmark);
+	public void parse(InputStream content) throws IOException, XmlPullParserException {
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setInput(content, "UTF-8");
+		int event = parser.getEventType();
+		while (event != XmlPullParser.END_DOCUMENT) {
+			if (event == XmlPullParser.START_TAG && "post".equalsIgnoreCase(parser.getName())) {
+				if (!this.hasSameLayout(parser)) {
+					this.resolveAttributes(parser);
+				}
+				String url = getValue(parser, this.href_index);
+				// Already received and published if the request is a retry
+				if (this.bookmarks.getItem(url) == null) {
+					BookmarkContent.Item bookmark = new BookmarkContent.Item();
+					bookmark.url = url;
+					bookmark.title = getValue(parser, this.description_index);
+					bookmark.setTags(getValue(parser, this.tag_index));
+					bookmark.description = getValue(parser, this.extended_index);
+					bookmark.status = getValue(parser, this.status_index);
+					this.bookmarks.addItem(bookmark);
+					this.addToBatch(bookmark);
+				}
+			}
+			event = parser.next();
+		}
+	}
+	
+	/**
+	 * Whether the attributes read are still at the cached positions. Only their
+	 * names are compared, optional attributes can shift the others while keeping
+	 * the same count.
+	 */
+	protected boolean hasSameLayout(XmlPullParser parser) {
+		return this.attribute_count == parser.getAttributeCount()
+			&& isAt(parser, this.href_index, "href")
+			&& isAt(parser, this.description_index, "description")
+			&& isAt(parser, this.tag_index, "tag")
+			&& isAt(parser, this.extended_index, "extended")
+			&& isAt(parser, this.status_index, "status");
+	}
+	
+	protected static boolean isAt(XmlPullParser parser, int index, String name) {
+		return index == -1 || name.equals(parser.getAttributeName(index));
+	}
+	
+	protected void resolveAttributes(XmlPullParser parser) {
+		this.attribute_count = parser.getAttributeCount();
+		this.href_index = -1;
+		this.description_index = -1;
+		this.tag_index = -1;
+		this.extended_index = -1;
+		this.status_index = -1;
+		for (int i = 0; i < this.attribute_count; i++) {
+			String name = parser.getAttributeName(i);
+			if ("href".equals(name)) {
+				this.href_index = i;
+			}
+			else if ("description".equals(name)) {
+				this.description_index = i;
+			}
+			else if ("tag".equals(name)) {
+				this.tag_index = i;
+			}
+			else if ("extended".equals(name)) {
+				this.extended_index = i;
+			}
+			else if ("status".equals(name)) {
+				this.status_index = i;
+			}
+		}
+	}
+	
+	protected static String getValue(XmlPullParser parser, int index) {
+		if (index == -1) {
+			return null;
+		}
+		return parser.getAttributeValue(index);
+	}
+	
+	protected void addToBatch(BookmarkContent.Item bookmark) {
+		if (this.task == null) {
+			return;
+		}
+		this.batch.add(bookmark);
+		if (this.batch.size() >= BATCH_SIZE) {
+			// The remaining items are delivered with the complete result
+			this.task.publish(this.batch);
+			this.batch = new ArrayList<BookmarkContent.Item>(BATCH_SIZE);
 		}
 	}
 }
@@ -0,0 +1,334 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * Apply the same change to several bookmarks, a few requests at a time.
+ * The shared bookmarks and the on-device store are updated once, when
+ * every request is done. The running operation is kept for the whole
+ * process, so that a recreated activity can follow it again.
+ */
+public class BulkOperation {
+
+	public static final int DELETE = 0;
+	public static final int ADD_TAGS = 1;
+	public static final int REMOVE_TAGS = 2;
+
+	/**
+	 * Requests sent at the same time
+	 */
+	protected static final int MAX_PARALLEL = 3;
+
+	/**
+	 * Operation running, or finished and not yet reported to a listener
+	 */
+	protected static BulkOperation current;
+
+	protected Context context;
+	protected int action;
+	protected Set<String> tags = new LinkedHashSet<String>();
+	protected Listener listener;
+	protected ScuttleAPI api;
+
+	protected LinkedList<BookmarkContent.Item> pending;
+	protected int total;
+	protected int running;
+	protected boolean finished;
+
+	/**
+	 * Per bookmark results
+	 */
+	protected List<BookmarkContent.Item> succeeded = new ArrayList<BookmarkContent.Item>();
+	protected List<BookmarkContent.Item> offline = new ArrayList<BookmarkContent.Item>();
+	protected Map<String, String> failures = new LinkedHashMap<String, String>();
+
+	public BulkOperation(Context context, int bulk_action, List<BookmarkContent.Item> items, Listener bulk_listener) {
+		this.context = context.getApplicationContext();
+		this.action = bulk_action;
+		this.pending = new LinkedList<BookmarkContent.Item>(items);
+		this.total = items.size();
+		this.listener = bulk_listener;
+		// One instance for every call, each one having its own callback
+		this.api = new ScuttleAPI(this.getGlobalPreferences(), null);
+	}
+
+	/**
+	 * Get the operation an activity should follow, null if there is none
+	 */
+	public static BulkOperation getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Set the space separated tags to add or remove
+	 */
+	public void setTags(String tag_list) {
+		this.tags.clear();
+		for (String tag : tag_list.trim().split("[\\s,]+")) {
+			if (!tag.isEmpty()) {
+				this.tags.add(tag);
+			}
+		}
+	}
+
+	public void start() {
+		current = this;
+		this.sendNext();
+	}
+
+	protected void sendNext() {
+		while (this.running < MAX_PARALLEL && !this.pending.isEmpty()) {
+			this.send(this.pending.removeFirst());
+		}
+		if (this.running == 0 && this.pending.isEmpty()) {
+			this.finish();
+		}
+	}
+
+	/**
+	 * Follow the operation with another listener, or with none while the
+	 * activity is recreated. A result reached in the meantime is reported
+	 * to the next listener.
+	 */
+	public void setListener(Listener bulk_listener) {
+		this.listener = bulk_listener;
+		if (this.listener != null && this.finished) {
+			this.report();
+		}
+	}
+
+	/**
+	 * Stop sending requests and reporting to the listener.
+	 * The results of the requests already sent are still applied.
+	 */
+	public void cancel() {
+		this.pending.clear();
+		this.listener = null;
+		if (current == this) {
+			current = null;
+		}
+	}
+
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	protected void send(BookmarkContent.Item item) {
+		BookmarkContent.Item target = item;
+		if (this.action != DELETE) {
+			target = this.retag(item);
+			if (target.getTags().equals(item.getTags())) {
+				// Nothing to change on this one
+				this.succeeded.add(target);
+				return;
+			}
+		}
+		this.running++;
+		if (this.action == DELETE) {
+			this.api.deleteBookmark(target, new ItemCallback(target));
+		}
+		else {
+			this.api.updateBookmark(target, new ItemCallback(target));
+		}
+	}
+
+	/**
+	 * Copy of the item with the tags added or removed
+	 */
+	protected BookmarkContent.Item retag(BookmarkContent.Item item) {
+		Set<String> item_tags = new LinkedHashSet<String>();
+		for (String tag : item.getTags().split(" ")) {
+			if (!tag.isEmpty()) {
+				item_tags.add(tag);
+			}
+		}
+		if (this.action == ADD_TAGS) {
+			item_tags.addAll(this.tags);
+		}
+		else {
+			item_tags.removeAll(this.tags);
+		}
+		StringBuilder builder = new StringBuilder();
+		for (String tag : item_tags) {
+			if (builder.length() > 0) {
+				builder.append(' ');
+			}
+			builder.append(tag);
+		}
+		BookmarkContent.Item copy = new BookmarkContent.Item();
+		copy.url = item.url;
+		copy.update(item.title, item.description, builder.toString(), item.status);
+		return copy;
+	}
+
+	protected void onItemSent(ItemCallback item_callback, String error) {
+		this.running--;
+		if (item_callback.is_offline) {
+			this.offline.add(item_callback.item);
+		}
+		else if (error == null) {
+			this.succeeded.add(item_callback.item);
+		}
+		else {
+			this.failures.put(item_callback.item.url, error);
+		}
+		if (this.listener != null) {
+			this.listener.onBulkProgress(this.getDoneCount(), this.total);
+		}
+		this.sendNext();
+	}
+
+	/**
+	 * Apply every result to the shared bookmarks at once
+	 */
+	protected void finish() {
+		if (this.finished) {
+			return;
+		}
+		this.finished = true;
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks != null && !this.succeeded.isEmpty()) {
+			if (this.action == DELETE) {
+				bookmarks.removeItems(this.getURLs(this.succeeded));
+			}
+			else {
+				for (BookmarkContent.Item item : this.succeeded) {
+					bookmarks.replaceItem(item);
+				}
+			}
+			new BookmarkStore(this.context).saveAsync(bookmarks);
+		}
+		for (BookmarkContent.Item item : this.succeeded) {
+			if (this.action == DELETE) {
+				RemoteSearch.removeFound(item.url);
+			}
+			else {
+				RemoteSearch.updateFound(item);
+			}
+		}
+		if (!this.offline.isEmpty()) {
+			Outbox.getInstance(this.context).add(this.action == DELETE ? Outbox.DELETE : Outbox.UPDATE, this.offline);
+		}
+		if (this.listener != null) {
+			this.report();
+		}
+	}
+
+	protected void report() {
+		if (current == this) {
+			current = null;
+		}
+		Listener finished_listener = this.listener;
+		this.listener = null;
+		finished_listener.onBulkFinished(this);
+	}
+
+	protected List<String> getURLs(List<BookmarkContent.Item> items) {
+		List<String> urls = new ArrayList<String>(items.size());
+		for (BookmarkContent.Item item : items) {
+			urls.add(item.url);
+		}
+		return urls;
+	}
+
+	public int getTotalCount() {
+		return this.total;
+	}
+
+	public int getDoneCount() {
+		return this.succeeded.size() + this.offline.size() + this.failures.size();
+	}
+
+	public int getSucceededCount() {
+		return this.succeeded.size();
+	}
+
+	public int getOfflineCount() {
+		return this.offline.size();
+	}
+
+	/**
+	 * Error messages by bookmark URL
+	 */
+	public Map<String, String> getFailures() {
+		return this.failures;
+	}
+
+	protected SharedPreferences getGlobalPreferences() {
+		return PreferenceManager.getDefaultSharedPreferences(this.context);
+	}
+
+	/**
+	 * Receives the result of the request sent for one bookmark
+	 */
+	protected class ItemCallback implements ScuttleAPI.UpdateCallback, ScuttleAPI.DeleteCallback,
+		ScuttleAPI.OfflineCallback {
+
+		protected BookmarkContent.Item item;
+		protected boolean is_offline;
+
+		public ItemCallback(BookmarkContent.Item target) {
+			this.item = target;
+		}
+
+		@Override
+		public void onBookmarkUpdated() {
+			BulkOperation.this.onItemSent(this, null);
+		}
+
+		@Override
+		public void onBookmarkDeleted() {
+			BulkOperation.this.onItemSent(this, null);
+		}
+
+		@Override
+		public void onOffline() {
+			this.is_offline = true;
+			BulkOperation.this.onItemSent(this, null);
+		}
+
+		@Override
+		public void onAPIError(String message) {
+			BulkOperation.this.onItemSent(this, message);
+		}
+
+		@Override
+		public Context getContext() {
+			return BulkOperation.this.context;
+		}
+	}
+
+	public interface Listener {
+		void onBulkProgress(int done, int total);
+		void onBulkFinished(BulkOperation operation);
+	}
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Process-wide HTTP clients, so that consecutive API calls reuse
+ * live keep-alive connections and SSL sessions.
+ */
+public class HTTPClientPool {
+	
+	protected static final int MAX_CONNECTIONS = 4;
+	
+	/**
+	 * Client checking server certificates
+	 */
+	protected static DefaultHttpClient default_client;
+	
+	/**
+	 * Client accepting all server certificates
+	 */
+	protected static DefaultHttpClient trusting_client;
+	
+	/**
+	 * Get the shared client for the given certificate setting
+	 */
+	public static synchronized DefaultHttpClient getClient(boolean accept_all_certs) {
+		DefaultHttpClient client;
+		if (accept_all_certs) {
+			if (trusting_client == null) {
+				trusting_client = createClient(true);
+			}
+			client = trusting_client;
+		}
+		else {
+			if (default_client == null) {
+				default_client = createClient(false);
+			}
+			client = default_client;
+		}
+		// Drop connections the server has already closed
+		client.getConnectionManager().closeExpiredConnections();
+		return client;
+	}
+	
+	protected static DefaultHttpClient createClient(boolean accept_all_certs) {
+		SocketFactory ssl_factory = SSLSocketFactory.getSocketFactory();
+		if (accept_all_certs) {
+			try {
+				ssl_factory = new TrustingSSLSocketFactory();
+			}
+			catch (Exception e) {
+				// Keep the default factory
+			}
+		}
+		SchemeRegistry scheme_registry = new SchemeRegistry();
+		scheme_registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		scheme_registry.register(new Scheme("https", ssl_factory, 443));
+		
+		HttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+		ClientConnectionManager connection_manager = new ThreadSafeClientConnManager(params, scheme_registry);
+		return new DefaultHttpClient(connection_manager, params);
+	}
+	
+}
@@ -0,0 +1,94 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+/**
+ * Response time and throughput observed on the API requests, used to
+ * give slow links longer timeouts. The defaults of APITask are lower bounds.
+ */
+public class LinkQuality {
+
+	public static final int MAX_CONNECTION_TIMEOUT = 30000;
+	public static final int MAX_SOCKET_TIMEOUT = 60000;
+
+	/**
+	 * Bytes a socket read should have received before the socket timeout
+	 */
+	protected static final int READ_SIZE = 8192;
+
+	/**
+	 * Smallest transfer measured for throughput, shorter ones are mostly latency
+	 */
+	protected static final int MIN_TRANSFER = 16384;
+
+	/**
+	 * Smoothed time to the response headers in ms, -1 until measured
+	 */
+	protected static long latency = -1;
+
+	/**
+	 * Smoothed throughput in bytes per second, -1 until measured
+	 */
+	protected static long throughput = -1;
+
+	/**
+	 * Doubled after each timeout, back to 1 after a completed transfer
+	 */
+	protected static int penalty = 1;
+
+	public static synchronized void recordLatency(long elapsed) {
+		latency = smooth(latency, elapsed);
+	}
+
+	/**
+	 * Record a response body read to the end. Headers arriving do not end the
+	 * penalty, a slow body can still time out after them.
+	 */
+	public static synchronized void recordTransfer(long bytes, long elapsed) {
+		if (bytes >= MIN_TRANSFER && elapsed > 0) {
+			throughput = smooth(throughput, bytes * 1000 / elapsed);
+		}
+		penalty = 1;
+	}
+
+	public static synchronized void recordTimeout() {
+		penalty = Math.min(penalty * 2, 4);
+	}
+
+	public static synchronized int getConnectionTimeout() {
+		long timeout = Math.max(APITask.CONNECTION_TIMEOUT, 2 * latency) * penalty;
+		return (int) Math.min(timeout, MAX_CONNECTION_TIMEOUT);
+	}
+
+	public static synchronized int getSocketTimeout() {
+		long timeout = Math.max(APITask.SOCKET_TIMEOUT, 4 * latency);
+		if (throughput > 0) {
+			timeout = Math.max(timeout, 4 * READ_SIZE * 1000L / throughput);
+		}
+		return (int) Math.min(timeout * penalty, MAX_SOCKET_TIMEOUT);
+	}
+
+	protected static long smooth(long average, long sample) {
+		if (average < 0) {
+			return sample;
+		}
+		return average + (sample - average) / 4;
+	}
+
+}
@@ -0,0 +1,525 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.widget.Toast;
+
+/**
+ * Durable queue of bookmark changes that could not reach the server.
+ * Changes are applied to the shared bookmarks right away, merged by URL,
+ * and sent in order once the connection is back. The changes of another
+ * account are set aside until it is used again.
+ */
+public class Outbox implements ScuttleAPI.CreateCallback, ScuttleAPI.UpdateCallback,
+	ScuttleAPI.DeleteCallback, ScuttleAPI.OfflineCallback, ScuttleAPI.RefusedCallback {
+
+	public static final int CREATE = 0;
+	public static final int UPDATE = 1;
+	public static final int DELETE = 2;
+
+	protected static final String FILE_NAME = "outbox.bin";
+	protected static final String ASIDE_FILE_NAME = "outbox-aside.bin";
+	protected static final int VERSION = 2;
+
+	protected static Outbox instance;
+
+	/**
+	 * Application context, outliving the activities
+	 */
+	protected Context context;
+
+	protected File file;
+
+	/**
+	 * Identifies the account the changes belong to
+	 */
+	protected String account;
+
+	/**
+	 * Pending changes by bookmark URL, oldest first
+	 */
+	protected LinkedHashMap<String, Change> changes = new LinkedHashMap<String, Change>();
+
+	/**
+	 * Change being sent, if any
+	 */
+	protected Change sending;
+
+	/**
+	 * Whether the stored changes were read, nothing is sent or written before
+	 */
+	protected boolean loaded;
+
+	/**
+	 * Set when replay() was called before the stored changes were read
+	 */
+	protected boolean replay_wanted;
+
+	/**
+	 * Get the shared instance, a new one when the account changed in the settings
+	 */
+	public static Outbox getInstance(Context context) {
+		String account = BookmarkStore.getAccount(PreferenceManager.getDefaultSharedPreferences(context));
+		if (instance == null || !instance.account.equals(account)) {
+			instance = new Outbox(context.getApplicationContext(), account);
+		}
+		return instance;
+	}
+
+	protected Outbox(Context app_context, String outbox_account) {
+		this.context = app_context;
+		this.account = outbox_account;
+		this.file = new File(app_context.getFilesDir(), FILE_NAME);
+		this.loadAsync();
+	}
+
+	/**
+	 * Whether this instance was replaced after an account change,
+	 * it must not send or write anything anymore
+	 */
+	protected boolean isReplaced() {
+		return instance != this;
+	}
+
+	/**
+	 * Read the stored changes in the background
+	 */
+	protected void loadAsync() {
+		new AsyncTask<Void, Void, LinkedHashMap<String, Change>>() {
+			@Override
+			protected LinkedHashMap<String, Change> doInBackground(Void... params) {
+				return Outbox.this.load();
+			}
+
+			@Override
+			protected void onPostExecute(LinkedHashMap<String, Change> stored_changes) {
+				Outbox.this.onLoaded(stored_changes);
+			}
+		}.execute();
+	}
+
+	protected void onLoaded(LinkedHashMap<String, Change> stored_changes) {
+		if (this.isReplaced()) {
+			// The account changed while reading
+			return;
+		}
+		// Changes queued meanwhile come after the stored ones
+		LinkedHashMap<String, Change> added = this.changes;
+		this.changes = stored_changes;
+		for (Change change : added.values()) {
+			this.queue(change.action, change.item);
+		}
+		this.loaded = true;
+		if (!added.isEmpty()) {
+			this.save();
+		}
+
+		// Bookmarks received meanwhile did not show the stored changes
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks != null && !stored_changes.isEmpty()) {
+			this.applyTo(bookmarks);
+			new BookmarkStore(this.context).saveAsync(bookmarks);
+		}
+
+		if (this.replay_wanted) {
+			this.replay_wanted = false;
+			this.replay();
+		}
+	}
+
+	public boolean isEmpty() {
+		return this.changes.isEmpty();
+	}
+
+	/**
+	 * Queue a change and apply it to the shared bookmarks
+	 */
+	public void add(int action, BookmarkContent.Item item) {
+		this.add(action, Collections.singletonList(item));
+	}
+
+	/**
+	 * Queue the same change for several bookmarks, saving only once
+	 */
+	public void add(int action, List<BookmarkContent.Item> items) {
+		for (BookmarkContent.Item item : items) {
+			this.queue(action, item);
+		}
+		this.save();
+
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks != null) {
+			if (action == DELETE) {
+				List<String> urls = new ArrayList<String>(items.size());
+				for (BookmarkContent.Item item : items) {
+					urls.add(item.url);
+				}
+				bookmarks.removeItems(urls);
+			}
+			else {
+				for (BookmarkContent.Item item : items) {
+					this.apply(bookmarks, action, item);
+				}
+			}
+			new BookmarkStore(this.context).saveAsync(bookmarks);
+		}
+		for (BookmarkContent.Item item : items) {
+			if (action == DELETE) {
+				RemoteSearch.removeFound(item.url);
+			}
+			else {
+				RemoteSearch.updateFound(copyItem(item));
+			}
+		}
+	}
+
+	protected void queue(int action, BookmarkContent.Item item) {
+		Change change = new Change(action, copyItem(item));
+		Change previous = this.changes.remove(item.url);
+		if (previous != null && previous != this.sending) {
+			if (previous.action == CREATE && action == UPDATE) {
+				// Still unknown to the server
+				change.action = CREATE;
+			}
+			else if (previous.action == CREATE && action == DELETE) {
+				// Never sent, nothing to do at all
+				change = null;
+			}
+			else if (previous.action == DELETE && action == CREATE) {
+				// Still known to the server
+				change.action = UPDATE;
+			}
+		}
+		if (change != null) {
+			this.changes.put(item.url, change);
+		}
+	}
+
+	/**
+	 * Apply the pending changes to bookmarks freshly received from the server
+	 */
+	public void applyTo(BookmarkContent bookmarks) {
+		// Deleted bookmarks are removed all at once
+		List<String> deleted_urls = new ArrayList<String>();
+		for (Change change : this.changes.values()) {
+			if (change.action == DELETE) {
+				deleted_urls.add(change.item.url);
+			}
+		}
+		bookmarks.removeItems(deleted_urls);
+		for (Change change : this.changes.values()) {
+			if (change.action != DELETE) {
+				this.apply(bookmarks, change.action, copyItem(change.item));
+			}
+		}
+	}
+
+	protected void apply(BookmarkContent bookmarks, int action, BookmarkContent.Item item) {
+		if (action == DELETE) {
+			bookmarks.removeItem(item.url);
+		}
+		else {
+			// Edited bookmarks keep their place, new ones go to the top
+			bookmarks.replaceItem(item);
+		}
+	}
+
+	/**
+	 * Send the pending changes, one after the other
+	 */
+	public void replay() {
+		if (this.isReplaced()) {
+			return;
+		}
+		if (!this.loaded) {
+			this.replay_wanted = true;
+			return;
+		}
+		if (this.sending != null || this.changes.isEmpty()) {
+			return;
+		}
+		this.sending = this.changes.values().iterator().next();
+		ScuttleAPI api = new ScuttleAPI(this.getGlobalPreferences(), this);
+		switch (this.sending.action) {
+			case CREATE:
+				api.createBookmark(this.sending.item);
+				break;
+			case UPDATE:
+				api.updateBookmark(this.sending.item);
+				break;
+			case DELETE:
+				api.deleteBookmark(this.sending.item);
+				break;
+		}
+	}
+
+	/**
+	 * The change being sent is done, go on with the next one
+	 */
+	protected void onSent() {
+		Iterator<Map.Entry<String, Change>> iterator = this.changes.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue() == this.sending) {
+				iterator.remove();
+				break;
+			}
+		}
+		this.sending = null;
+		this.save();
+		this.replay();
+	}
+
+	@Override
+	public void onBookmarkCreated() {
+		this.onSent();
+	}
+
+	@Override
+	public void onBookmarkExists() {
+		// Created meanwhile, replace it with our version
+		this.sending.action = UPDATE;
+		this.sending = null;
+		this.save();
+		this.replay();
+	}
+
+	@Override
+	public void onBookmarkUpdated() {
+		this.onSent();
+	}
+
+	@Override
+	public void onBookmarkDeleted() {
+		this.onSent();
+	}
+
+	@Override
+	public void onOffline() {
+		// Keep everything for the next attempt
+		this.sending = null;
+	}
+
+	@Override
+	public void onRefused(String message) {
+		// The change would never be accepted
+		Toast.makeText(this.context, message, Toast.LENGTH_LONG).show();
+		this.onSent();
+	}
+
+	@Override
+	public void onAPIError(String message) {
+		// Server or account trouble, keep the change for the next replay
+		this.sending = null;
+	}
+
+	@Override
+	public Context getContext() {
+		return this.context;
+	}
+
+	protected SharedPreferences getGlobalPreferences() {
+		return PreferenceManager.getDefaultSharedPreferences(this.context);
+	}
+
+	/**
+	 * Read the stored changes, called in the background
+	 */
+	protected LinkedHashMap<String, Change> load() {
+		LinkedHashMap<String, Change> stored_changes = new LinkedHashMap<String, Change>();
+		this.swapAside();
+		if (!this.file.exists()) {
+			return stored_changes;
+		}
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+			if (input.readInt() != VERSION || !this.account.equals(BookmarkStore.readString(input))) {
+				return stored_changes;
+			}
+			int count = input.readInt();
+			for (int i = 0; i < count; i++) {
+				int action = input.readInt();
+				BookmarkContent.Item item = new BookmarkContent.Item();
+				item.url = BookmarkStore.readString(input);
+				item.title = BookmarkStore.readString(input);
+				item.description = BookmarkStore.readString(input);
+				item.setTags(BookmarkStore.readString(input));
+				item.status = BookmarkStore.readString(input);
+				stored_changes.put(item.url, new Change(action, item));
+			}
+		}
+		catch (IOException e) {
+			// Keep what could be read
+		}
+		finally {
+			BookmarkStore.closeQuietly(input);
+		}
+		return stored_changes;
+	}
+
+	/**
+	 * Put the changes of another account aside, and bring back ours
+	 * if they were, called in the background
+	 */
+	protected void swapAside() {
+		String stored_account = readAccount(this.file);
+		if (this.account.equals(stored_account)) {
+			return;
+		}
+		File aside_file = new File(this.file.getParentFile(), ASIDE_FILE_NAME);
+		File temp_file = new File(this.file.getPath() + ".swap");
+		if (stored_account != null) {
+			this.file.renameTo(temp_file);
+		}
+		else {
+			// Missing, or written by an older version
+			this.file.delete();
+		}
+		if (this.account.equals(readAccount(aside_file))) {
+			aside_file.renameTo(this.file);
+		}
+		if (stored_account != null) {
+			// Replaces the changes of a third account, if any
+			temp_file.renameTo(aside_file);
+		}
+	}
+
+	/**
+	 * Account a change file belongs to, null if it can not be read
+	 */
+	protected static String readAccount(File change_file) {
+		if (!change_file.exists()) {
+			return null;
+		}
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(change_file)));
+			if (input.readInt() != VERSION) {
+				return null;
+			}
+			return BookmarkStore.readString(input);
+		}
+		catch (IOException e) {
+			return null;
+		}
+		finally {
+			BookmarkStore.closeQuietly(input);
+		}
+	}
+
+	/**
+	 * Write the pending changes in the background, after the previous writes
+	 */
+	protected void save() {
+		if (this.isReplaced()) {
+			// The file belongs to the new account now
+			return;
+		}
+		if (!this.loaded) {
+			// Written with the stored changes once they are read
+			return;
+		}
+		// Take a snapshot now, the changes may be merged while we write
+		final List<Change> snapshot = new ArrayList<Change>(this.changes.size());
+		for (Change change : this.changes.values()) {
+			snapshot.add(new Change(change.action, change.item));
+		}
+		new AsyncTask<Void, Void, Void>() {
+			@Override
+			protected Void doInBackground(Void... params) {
+				Outbox.this.write(snapshot);
+				return null;
+			}
+		}.execute();
+	}
+
+	protected void write(List<Change> snapshot) {
+		if (snapshot.isEmpty()) {
+			this.file.delete();
+			return;
+		}
+		File temp_file = new File(this.file.getPath() + ".tmp");
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp_file)));
+			output.writeInt(VERSION);
+			BookmarkStore.writeString(output, this.account);
+			output.writeInt(snapshot.size());
+			for (Change change : snapshot) {
+				output.writeInt(change.action);
+				BookmarkStore.writeString(output, change.item.url);
+				BookmarkStore.writeString(output, change.item.title);
+				BookmarkStore.writeString(output, change.item.description);
+				BookmarkStore.writeString(output, change.item.getRawTags());
+				BookmarkStore.writeString(output, change.item.status);
+			}
+			output.close();
+			output = null;
+			if (!temp_file.renameTo(this.file)) {
+				temp_file.delete();
+			}
+		}
+		catch (IOException e) {
+			temp_file.delete();
+		}
+		finally {
+			BookmarkStore.closeQuietly(output);
+		}
+	}
+
+	protected static BookmarkContent.Item copyItem(BookmarkContent.Item item) {
+		BookmarkContent.Item copy = new BookmarkContent.Item();
+		copy.url = item.url;
+		copy.update(item.title, item.description, item.getRawTags(), item.status);
+		return copy;
+	}
+
+	/**
+	 * A pending change
+	 */
+	protected static class Change {
+		public int action;
+		public BookmarkContent.Item item;
+
+		public Change(int change_action, BookmarkContent.Item change_item) {
+			this.action = change_action;
+			this.item = change_item;
+		}
+	}
+
+}
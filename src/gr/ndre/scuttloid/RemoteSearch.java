@@ -0,0 +1,182 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.Handler;
+import android.preference.PreferenceManager;
+
+/**
+ * Search the bookmarks on the server, for collections too large to be
+ * downloaded. The API only filters by tag, so each typed word is a tag
+ * the bookmarks must have. Words are cached by the tag cache, which makes
+ * repeated searches immediate.
+ */
+public class RemoteSearch implements ScuttleAPI.TaggedProgressCallback {
+	
+	/**
+	 * Milliseconds without typing before the query is sent
+	 */
+	protected static final long DELAY = 500;
+	
+	/**
+	 * Bookmarks found so far, so they can be opened and edited. Kept apart
+	 * from the shared collection, they are never written to the on-device store.
+	 */
+	protected static BookmarkContent found = new BookmarkContent();
+	
+	protected Context context;
+	protected Listener listener;
+	protected Handler handler = new Handler();
+	
+	protected String query;
+	protected List<String> words = new ArrayList<String>();
+	protected Map<String, List<BookmarkContent.Item>> results = new HashMap<String, List<BookmarkContent.Item>>();
+	protected List<ScuttleAPI.Request> requests = new ArrayList<ScuttleAPI.Request>();
+	
+	protected Runnable send_query = new Runnable() {
+		@Override
+		public void run() {
+			RemoteSearch.this.send();
+		}
+	};
+	
+	public RemoteSearch(Context context, Listener search_listener) {
+		this.context = context;
+		this.listener = search_listener;
+	}
+	
+	public static BookmarkContent getFound() {
+		return found;
+	}
+	
+	/**
+	 * Show an edit made on the server in the bookmarks found
+	 */
+	public static void updateFound(BookmarkContent.Item item) {
+		if (found.getItem(item.url) != null) {
+			found.replaceItem(item);
+		}
+	}
+	
+	/**
+	 * Forget a bookmark deleted on the server
+	 */
+	public static void removeFound(String url) {
+		found.removeItem(url);
+	}
+	
+	/**
+	 * Search once the user stops typing, replacing the previous search
+	 */
+	public void search(String new_query) {
+		this.cancel();
+		this.query = new_query.trim();
+		if (!this.query.isEmpty()) {
+			this.handler.postDelayed(this.send_query, DELAY);
+		}
+	}
+	
+	public void cancel() {
+		this.handler.removeCallbacks(this.send_query);
+		for (ScuttleAPI.Request request : this.requests) {
+			request.cancel();
+		}
+		this.requests.clear();
+		this.results.clear();
+		this.words.clear();
+	}
+	
+	protected void send() {
+		Set<String> unique_words = new LinkedHashSet<String>();
+		for (String word : this.query.toLowerCase(Locale.getDefault()).split("\\s+")) {
+			unique_words.add(word);
+		}
+		this.words.addAll(unique_words);
+		ScuttleAPI api = new ScuttleAPI(PreferenceManager.getDefaultSharedPreferences(this.context), null);
+		for (String word : unique_words) {
+			this.requests.add(api.getTaggedBookmarks(word, this));
+		}
+	}
+	
+	@Override
+	public void onTaggedBookmarksProgress(String tag, List<BookmarkContent.Item> batch) {
+		// With several words, nothing is known before every one has arrived
+		if (this.words.size() == 1 && this.words.contains(tag)) {
+			this.listener.onSearchProgress(batch);
+		}
+	}
+	
+	@Override
+	public void onTaggedBookmarksReceived(String tag, List<BookmarkContent.Item> items) {
+		if (!this.words.contains(tag)) {
+			return;
+		}
+		this.results.put(tag, items);
+		if (this.results.size() < this.words.size()) {
+			return;
+		}
+		
+		// Bookmarks having every word, in the order of the first one
+		Map<String, BookmarkContent.Item> matches = new LinkedHashMap<String, BookmarkContent.Item>();
+		for (BookmarkContent.Item item : this.results.get(this.words.get(0))) {
+			matches.put(item.url, item);
+		}
+		for (int i = 1; i < this.words.size(); i++) {
+			Set<String> word_urls = new HashSet<String>();
+			for (BookmarkContent.Item item : this.results.get(this.words.get(i))) {
+				word_urls.add(item.url);
+			}
+			matches.keySet().retainAll(word_urls);
+		}
+		String done_query = this.query;
+		this.requests.clear();
+		this.results.clear();
+		this.words.clear();
+		this.listener.onSearchResults(done_query, new ArrayList<BookmarkContent.Item>(matches.values()));
+	}
+	
+	@Override
+	public void onAPIError(String message) {
+		this.cancel();
+		this.listener.onSearchError(message);
+	}
+	
+	@Override
+	public Context getContext() {
+		return this.context;
+	}
+	
+	public interface Listener {
+		void onSearchProgress(List<BookmarkContent.Item> batch);
+		void onSearchResults(String query, List<BookmarkContent.Item> items);
+		void onSearchError(String message);
+	}
+	
+}
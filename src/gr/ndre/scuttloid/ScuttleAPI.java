@@ -19,8 +19,11 @@
 package gr.ndre.scuttloid;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,28 +34,54 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.webkit.URLUtil;
 
 /**
  * Enclose all API calls to Semantic Scuttle server
  */
-public class ScuttleAPI implements APITask.Callback {
+public class ScuttleAPI {
 	
 	protected static final int BOOKMARKS = 0;
 	protected static final int UPDATE = 1;
 	protected static final int CREATE = 2;
 	protected static final int DELETE = 3;
+	protected static final int LAST_UPDATE = 4;
+	protected static final int BOOKMARK = 5;
+	protected static final int TAGGED = 6;
 
 	protected static final String ADD_PATH = "/posts/add";
 	protected static final String GET_PATH = "/posts/all";
+	protected static final String GET_ONE_PATH = "/posts/get";
 	protected static final String DELETE_PATH = "/posts/delete";
+	protected static final String UPDATE_PATH = "/posts/update";
+	
+	/**
+	 * Bookmarks asked for in each request of a paged download
+	 */
+	protected static final int PAGE_SIZE = 1000;
+	
+	/**
+	 * Attempts to get a page again after a timeout
+	 */
+	protected static final int MAX_PAGE_RETRIES = 2;
+	
+	/**
+	 * Bookmark downloads in progress, by account and validators.
+	 * Only used from the UI thread.
+	 */
+	protected static Map<String, Request> fetches = new HashMap<String, Request>();
 
 	protected String url;
 	protected String username;
 	protected String password;
-	protected Integer handler;
 	protected boolean accept_all_certs;
+	protected boolean paged;
+	protected Executor executor;
 	
+	/**
+	 * Default callback of the calls not given one
+	 */
 	protected Callback callback;
 	
 	/**
@@ -71,20 +100,190 @@ public class ScuttleAPI implements APITask.Callback {
 		this.username = preferences.getString("username", "");
 		this.password = preferences.getString("password", "");
 		this.accept_all_certs = preferences.getBoolean("acceptallcerts", false);
+		this.paged = preferences.getBoolean("pagedfetch", false);
 		this.callback = api_callback;
 	}
 	
-	public void getBookmarks() {
-		this.handler = BOOKMARKS;
-		APITask task = this.getAPITask(GET_PATH);
+	/**
+	 * Run the API tasks on the given executor
+	 */
+	public void setExecutor(Executor task_executor) {
+		this.executor = task_executor;
+	}
+	
+	public Request getBookmarks() {
+		return this.getBookmarks((BookmarksCallback) this.callback);
+	}
+	
+	public Request getBookmarks(BookmarksCallback bookmarks_callback) {
+		return this.fetchBookmarks(new Request(BOOKMARKS, bookmarks_callback));
+	}
+	
+	protected Request fetchBookmarks(Request request) {
+		request.type = BOOKMARKS;
+		String key = this.getFetchKey(request.current_bookmarks);
+		Request running = fetches.get(key);
+		if (running != null) {
+			// Wait for the same download instead of starting another one
+			running.followers.add(request);
+			request.leader = running;
+			return request;
+		}
+		request.fetch_key = key;
+		fetches.put(key, request);
+		if (this.paged) {
+			request.pages = new BookmarkContent();
+			request.next_start = 0;
+			this.fetchPage(request);
+			return request;
+		}
+		APITask task = this.getAPITask(GET_PATH, request);
+		task.setHandler(new BookmarksXMLHandler());
+		task.setPriority(APIExecutor.PRIORITY_LOW);
+		if (request.current_bookmarks != null) {
+			// Only download again if the current bookmarks are stale
+			task.setValidators(request.current_bookmarks.getETag(), request.current_bookmarks.getLastModified());
+			task.addAcceptableStatus(HttpStatus.SC_NOT_MODIFIED);
+		}
+		request.start(task);
+		return request;
+	}
+	
+	/**
+	 * Get the next page of a paged download
+	 */
+	protected void fetchPage(Request request) {
+		APITask task = this.getAPITask(GET_PATH + "?start=" + request.next_start + "&results=" + PAGE_SIZE, request);
 		task.setHandler(new BookmarksXMLHandler());
-		task.execute();
+		task.setPriority(APIExecutor.PRIORITY_LOW);
+		request.start(task);
+	}
+	
+	/**
+	 * Merge a downloaded page, then get the next one or deliver the whole collection
+	 */
+	protected void onPageFetched(Request request, DefaultHandler xml_handler) {
+		BookmarkContent page = ((BookmarksXMLHandler) xml_handler).getBookmarks();
+		List<BookmarkContent.Item> added = request.mergePage(page.getItems());
+		request.page_retries = 0;
+		// A server ignoring the paging parameters sends everything, or the same page again
+		boolean last_page = page.size() < PAGE_SIZE || page.size() > PAGE_SIZE || request.page_new_items == 0;
+		if (last_page) {
+			this.deliverBookmarks(request, request.pages);
+			return;
+		}
+		if (!added.isEmpty()) {
+			this.sendProgress(request, added);
+		}
+		request.next_start += page.size();
+		request.page_new_items = 0;
+		this.fetchPage(request);
 	}
 	
-	public void updateBookmark(BookmarkContent.Item item) {
-		this.handler = UPDATE;
-		APITask task = this.getAPITask(ADD_PATH);
+	/**
+	 * Identify a download, requests with the same key get the same response
+	 */
+	protected String getFetchKey(BookmarkContent current) {
+		StringBuilder key = new StringBuilder(this.buildURL(GET_PATH));
+		key.append('\n').append(this.username);
+		if (current != null) {
+			key.append('\n').append(current.getETag());
+			key.append('\n').append(current.getLastModified());
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * Forget the finished download and get the requests still waiting for it
+	 */
+	protected static List<Request> endFetch(Request request) {
+		if (fetches.get(request.fetch_key) == request) {
+			fetches.remove(request.fetch_key);
+		}
+		List<Request> subscribers = new ArrayList<Request>();
+		if (!request.cancelled) {
+			subscribers.add(request);
+		}
+		for (Request follower : request.followers) {
+			if (!follower.cancelled) {
+				subscribers.add(follower);
+			}
+		}
+		return subscribers;
+	}
+	
+	public Request getBookmark(String bookmark_url) {
+		return this.getBookmark(bookmark_url, (BookmarkCallback) this.callback);
+	}
+	
+	/**
+	 * Get a single bookmark by URL, without downloading the whole collection.
+	 * Calls BookmarkCallback.onBookmarkReceived() with null if there is none.
+	 */
+	public Request getBookmark(String bookmark_url, BookmarkCallback bookmark_callback) {
+		Request request = new Request(BOOKMARK, bookmark_callback);
+		APITask task = this.getAPITask(GET_ONE_PATH + "?url=" + Uri.encode(bookmark_url), request);
+		task.setHandler(new BookmarksXMLHandler());
+		// A tiny request someone is waiting for
+		task.setPriority(APIExecutor.PRIORITY_HIGH);
+		request.start(task);
+		return request;
+	}
+	
+	/**
+	 * Get the bookmarks having the given tag, without downloading the whole collection.
+	 * Recently downloaded tags are given back at once from the cache.
+	 */
+	public Request getTaggedBookmarks(String tag, TaggedCallback tagged_callback) {
+		Request request = new Request(TAGGED, tagged_callback);
+		request.tag = tag;
+		List<BookmarkContent.Item> cached = TagCache.get(this.getTagKey(tag));
+		if (cached != null) {
+			tagged_callback.onTaggedBookmarksReceived(tag, cached);
+			return request;
+		}
+		APITask task = this.getAPITask(GET_PATH + "?tag=" + Uri.encode(tag), request);
+		task.setHandler(new BookmarksXMLHandler());
+		task.setPriority(APIExecutor.PRIORITY_NORMAL);
+		request.start(task);
+		return request;
+	}
+	
+	/**
+	 * Identify the bookmarks of a tag in the cache
+	 */
+	protected String getTagKey(String tag) {
+		return this.buildURL(GET_PATH) + '\n' + this.username + '\n' + tag.toLowerCase(Locale.getDefault());
+	}
+	
+	public Request syncBookmarks(BookmarkContent current) {
+		return this.syncBookmarks(current, (SyncCallback) this.callback);
+	}
+	
+	/**
+	 * Get the bookmarks only if they changed on the server since the current ones were fetched.
+	 * Calls SyncCallback.onBookmarksUnchanged() otherwise.
+	 */
+	public Request syncBookmarks(BookmarkContent current, SyncCallback sync_callback) {
+		Request request = new Request(LAST_UPDATE, sync_callback);
+		request.current_bookmarks = current;
+		APITask task = this.getAPITask(UPDATE_PATH, request);
+		task.setHandler(new UpdateXMLHandler());
+		task.setPriority(APIExecutor.PRIORITY_LOW);
+		request.start(task);
+		return request;
+	}
+	
+	public Request updateBookmark(BookmarkContent.Item item) {
+		return this.updateBookmark(item, (UpdateCallback) this.callback);
+	}
+	
+	public Request updateBookmark(BookmarkContent.Item item, UpdateCallback update_callback) {
+		Request request = new Request(UPDATE, update_callback);
+		APITask task = this.getAPITask(ADD_PATH, request);
 		task.setMethod(APITask.METHOD_POST);
+		// Short changes overtake the downloads
+		task.setPriority(APIExecutor.PRIORITY_HIGH);
 		// Prepare post data
 		List<NameValuePair> params = this.itemToParams(item);
 		// Force bookmark replacement
@@ -95,13 +294,20 @@ public class ScuttleAPI implements APITask.Callback {
 		task.addAcceptableStatus(HttpStatus.SC_BAD_REQUEST); 
 		// accept 409 : bookmark exists
 		task.addAcceptableStatus(HttpStatus.SC_CONFLICT);
-		task.execute();
+		request.start(task);
+		return request;
+	}
+	
+	public Request createBookmark(BookmarkContent.Item item) {
+		return this.createBookmark(item, (CreateCallback) this.callback);
 	}
 	
-	public void createBookmark(BookmarkContent.Item item) {
-		this.handler = CREATE;
-		APITask task = this.getAPITask(ADD_PATH);
+	public Request createBookmark(BookmarkContent.Item item, CreateCallback create_callback) {
+		Request request = new Request(CREATE, create_callback);
+		APITask task = this.getAPITask(ADD_PATH, request);
 		task.setMethod(APITask.METHOD_POST);
+		// Short changes overtake the downloads
+		task.setPriority(APIExecutor.PRIORITY_HIGH);
 		
 		// Prepare post data
 		List<NameValuePair> params = this.itemToParams(item);
@@ -111,73 +317,198 @@ public class ScuttleAPI implements APITask.Callback {
 		task.addAcceptableStatus(HttpStatus.SC_BAD_REQUEST);
 		// accept 409 : bookmark exists
 		task.addAcceptableStatus(HttpStatus.SC_CONFLICT);
-		task.execute();
+		request.start(task);
+		return request;
 	}
 	
-	public void deleteBookmark(BookmarkContent.Item item) {
-		this.handler = DELETE;
-		APITask task = this.getAPITask(DELETE_PATH);
+	public Request deleteBookmark(BookmarkContent.Item item) {
+		return this.deleteBookmark(item, (DeleteCallback) this.callback);
+	}
+	
+	public Request deleteBookmark(BookmarkContent.Item item, DeleteCallback delete_callback) {
+		Request request = new Request(DELETE, delete_callback);
+		APITask task = this.getAPITask(DELETE_PATH, request);
 		task.setMethod(APITask.METHOD_POST);
+		// Short changes overtake the downloads
+		task.setPriority(APIExecutor.PRIORITY_HIGH);
 		List<NameValuePair> params = new ArrayList<NameValuePair>(1);
 		params.add(new BasicNameValuePair("url", item.url));
 		task.setData(params);
 		task.setHandler(new ResultXMLHandler());
 		// accept 404 : bookmark doesn't exist
 		task.addAcceptableStatus(HttpStatus.SC_NOT_FOUND);
-		task.execute();
+		request.start(task);
+		return request;
 	}
 	
-	@Override
-	public void onDataReceived(DefaultHandler xml_handler, int status) {
-		switch (this.handler) {
-			case BOOKMARKS:
-				BookmarkContent bookmarks = ((BookmarksXMLHandler) xml_handler).getBookmarks();
-				((BookmarksCallback) this.callback).onBookmarksReceived(bookmarks);
+	protected void onDataReceived(Request request, DefaultHandler xml_handler, int status) {
+		if (request.type == BOOKMARKS && request.pages != null) {
+			this.onPageFetched(request, xml_handler);
+			return;
+		}
+		if (request.type == BOOKMARKS) {
+			this.onBookmarksFetched(request, xml_handler, status);
+			return;
+		}
+		if (request.type == TAGGED) {
+			List<BookmarkContent.Item> tagged = ((BookmarksXMLHandler) xml_handler).getBookmarks().getItems();
+			// Cached even if the caller left, the next one will want it
+			TagCache.put(this.getTagKey(request.tag), tagged);
+			if (!request.cancelled) {
+				((TaggedCallback) request.callback).onTaggedBookmarksReceived(request.tag, tagged);
+			}
+			return;
+		}
+		if (request.type == UPDATE || request.type == CREATE || request.type == DELETE) {
+			// The tags of a bookmark may have changed, even if the caller left
+			TagCache.clear();
+		}
+		if (request.cancelled) {
+			return;
+		}
+		Callback request_callback = request.callback;
+		switch (request.type) {
+			case BOOKMARK:
+				BookmarkContent found = ((BookmarksXMLHandler) xml_handler).getBookmarks();
+				BookmarkContent.Item item = null;
+				if (found.size() > 0) {
+					item = found.getItem(0);
+				}
+				((BookmarkCallback) request_callback).onBookmarkReceived(item);
+				break;
+			case LAST_UPDATE:
+				request.server_update_time = ((UpdateXMLHandler) xml_handler).time;
+				if (request.server_update_time != null && request.current_bookmarks != null
+						&& request.server_update_time.equals(request.current_bookmarks.getUpdateTime())) {
+					((SyncCallback) request_callback).onBookmarksUnchanged();
+				}
+				else {
+					this.fetchBookmarks(request);
+				}
 				break;
 			case UPDATE:
 				if (status == HttpStatus.SC_OK) {
-					((UpdateCallback) this.callback).onBookmarkUpdated();
+					((UpdateCallback) request_callback).onBookmarkUpdated();
 				}
 				else {
-					this.sendResultError(xml_handler);
+					this.sendResultError(request, xml_handler);
 				}
 				break;
 			case CREATE:
 				if (status == HttpStatus.SC_OK) {
-					((CreateCallback) this.callback).onBookmarkCreated();
+					((CreateCallback) request_callback).onBookmarkCreated();
 				}
 				else if (status == HttpStatus.SC_CONFLICT) {
-					((CreateCallback) this.callback).onBookmarkExists();
+					((CreateCallback) request_callback).onBookmarkExists();
 				}
 				else {
-					this.sendResultError(xml_handler);
+					this.sendResultError(request, xml_handler);
 				}
 				break;
 			case DELETE:
 				if (status == HttpStatus.SC_OK) {
-					((DeleteCallback) this.callback).onBookmarkDeleted();
+					((DeleteCallback) request_callback).onBookmarkDeleted();
 				}
 				else if (status == HttpStatus.SC_NOT_FOUND) {
-					this.callback.onAPIError(this.callback.getContext().getString(R.string.error_bookmarkdelete_notfound));
+					this.sendRefusal(request, request_callback.getContext().getString(R.string.error_bookmarkdelete_notfound));
 				}
 				else {
-					this.sendResultError(xml_handler);
+					this.sendResultError(request, xml_handler);
 				}
 				break;
 		}
 	}
 
-	protected void sendResultError(DefaultHandler xml_handler) {
+	/**
+	 * Give the downloaded bookmarks to every request waiting for them
+	 */
+	protected void onBookmarksFetched(Request request, DefaultHandler xml_handler, int status) {
+		BookmarkContent bookmarks = null;
+		if (status != HttpStatus.SC_NOT_MODIFIED) {
+			bookmarks = ((BookmarksXMLHandler) xml_handler).getBookmarks();
+			bookmarks.setValidators(request.task.getResponseETag(), request.task.getResponseLastModified());
+		}
+		this.deliverBookmarks(request, bookmarks);
+	}
+	
+	/**
+	 * Give the bookmarks, or null if they did not change, to every request of the download
+	 */
+	protected void deliverBookmarks(Request request, BookmarkContent bookmarks) {
+		if (bookmarks != null) {
+			// Something changed on the server
+			TagCache.clear();
+		}
+		for (Request subscriber : endFetch(request)) {
+			if (bookmarks == null) {
+				if (subscriber.server_update_time != null) {
+					subscriber.current_bookmarks.setUpdateTime(subscriber.server_update_time);
+				}
+				((SyncCallback) subscriber.callback).onBookmarksUnchanged();
+			}
+			else {
+				if (subscriber.server_update_time != null) {
+					bookmarks.setUpdateTime(subscriber.server_update_time);
+				}
+				((BookmarksCallback) subscriber.callback).onBookmarksReceived(bookmarks);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected void onDataProgress(Request request, Object progress) {
+		List<BookmarkContent.Item> batch = (List<BookmarkContent.Item>) progress;
+		if (request.type == TAGGED) {
+			if (!request.cancelled && request.callback instanceof TaggedProgressCallback) {
+				((TaggedProgressCallback) request.callback).onTaggedBookmarksProgress(request.tag, batch);
+			}
+			return;
+		}
+		if (request.type != BOOKMARKS) {
+			return;
+		}
+		if (request.pages != null) {
+			// Only pass on what a retried page did not already give
+			batch = request.mergePage(batch);
+		}
+		this.sendProgress(request, batch);
+	}
+	
+	protected void sendProgress(Request request, List<BookmarkContent.Item> batch) {
+		// Requests joining late only get the complete result
+		List<Request> subscribers = new ArrayList<Request>(request.followers);
+		subscribers.add(0, request);
+		for (Request subscriber : subscribers) {
+			if (!subscriber.cancelled && subscriber.callback instanceof BookmarksProgressCallback) {
+				((BookmarksProgressCallback) subscriber.callback).onBookmarksProgress(batch);
+			}
+		}
+	}
+
+	protected void sendResultError(Request request, DefaultHandler xml_handler) {
 		String result = ((ResultXMLHandler) xml_handler).code;
 		result = result.substring(0, 1).toUpperCase(Locale.US) + result.substring(1);
-		this.callback.onAPIError(result);
+		this.sendRefusal(request, result);
 	}
 	
-	protected APITask getAPITask(String path) {
-		APITask task = new APITask(this, this.username, this.password);
+	/**
+	 * Report an error meaning the server will never accept the request as it is
+	 */
+	protected void sendRefusal(Request request, String message) {
+		if (request.callback instanceof RefusedCallback) {
+			((RefusedCallback) request.callback).onRefused(message);
+		}
+		else {
+			request.callback.onAPIError(message);
+		}
+	}
+	
+	protected APITask getAPITask(String path, Request request) {
+		APITask task = new APITask(request, this.username, this.password);
 		String api_url = this.buildURL(path);
 		task.setURL(api_url);
 		task.acceptAllCerts(this.accept_all_certs);
+		task.setExecutor(this.executor);
 		return task;
 	}
 	
@@ -194,41 +525,235 @@ public class ScuttleAPI implements APITask.Callback {
 		params.add(new BasicNameValuePair("url", item.url));
 		params.add(new BasicNameValuePair("description", item.title));
 		params.add(new BasicNameValuePair("extended", item.description));
-		params.add(new BasicNameValuePair("tags", item.tags));
+		params.add(new BasicNameValuePair("tags", item.getRawTags()));
 		params.add(new BasicNameValuePair("status", item.status));
 		return params;
 	}
 
-	@Override
-	public void onError(int status) {
+	protected void onError(Request request, int status) {
+		if (request.pages != null && isConnectionError(status) && request.page_retries < MAX_PAGE_RETRIES
+				&& !request.isAbandoned()) {
+			// Resume from the page that failed, the previous ones are kept
+			request.page_retries++;
+			this.fetchPage(request);
+			return;
+		}
+		if (request.fetch_key != null) {
+			for (Request subscriber : endFetch(request)) {
+				this.sendError(subscriber, status);
+			}
+		}
+		else if (!request.cancelled) {
+			this.sendError(request, status);
+		}
+	}
+	
+	protected void sendError(Request request, int status) {
+		Callback request_callback = request.callback;
+		if (request.type == LAST_UPDATE && status < APITask.GENERIC_ERROR) {
+			// The server does not support update checks, fetch everything
+			request.server_update_time = null;
+			this.fetchBookmarks(request);
+			return;
+		}
+		if (isConnectionError(status) && request_callback instanceof OfflineCallback) {
+			((OfflineCallback) request_callback).onOffline();
+			return;
+		}
 		String message = "";
 		switch (status) {
 			case APITask.UNKNOWN_HOST:
-				message = this.callback.getContext().getString(R.string.error_unknownhost);
+				message = request_callback.getContext().getString(R.string.error_unknownhost);
 				break;
 			case APITask.PARSE_ERROR:
-				message = this.callback.getContext().getString(R.string.error_xmlparse);
+				message = request_callback.getContext().getString(R.string.error_xmlparse);
 				break;
 			case APITask.SSL_ERROR:
-				message = this.callback.getContext().getString(R.string.error_sslconnection);
+				message = request_callback.getContext().getString(R.string.error_sslconnection);
 				break;
 			case APITask.TIMEOUT_ERROR:
-				message = this.callback.getContext().getString(R.string.error_timeout);
+				message = request_callback.getContext().getString(R.string.error_timeout);
+				break;
+			case APITask.CONNECTION_ERROR:
+				message = request_callback.getContext().getString(R.string.error_connection);
 				break;
 			case HttpStatus.SC_UNAUTHORIZED:
-				message = this.callback.getContext().getString(R.string.error_authentication);
+				message = request_callback.getContext().getString(R.string.error_authentication);
 				break;
 			case HttpStatus.SC_NOT_FOUND:
 				// TODO : in some cases, 404 could mean "item not found" when deleting
-				message = this.callback.getContext().getString(R.string.error_notfound);
+				message = request_callback.getContext().getString(R.string.error_notfound);
 				break;
 			default:
-				message = this.callback.getContext().getString(R.string.error_apigeneric);
+				message = request_callback.getContext().getString(R.string.error_apigeneric);
 				//System.out.println(String.valueOf(status));
 				break;
 		}
-		if (!message.isEmpty()) {
-			this.callback.onAPIError(message);
+		if (message.isEmpty()) {
+			return;
+		}
+		if (isRefusal(status)) {
+			this.sendRefusal(request, message);
+		}
+		else {
+			request_callback.onAPIError(message);
+		}
+	}
+	
+	/**
+	 * Whether the status means the server could not be reached
+	 */
+	public static boolean isConnectionError(int status) {
+		return status == APITask.UNKNOWN_HOST || status == APITask.TIMEOUT_ERROR
+				|| status == APITask.CONNECTION_ERROR;
+	}
+	
+	/**
+	 * Whether the status is a client error that sending again would not fix.
+	 * 401 may follow a password change and 404 a wrong server URL, both can be fixed
+	 * in the settings.
+	 */
+	public static boolean isRefusal(int status) {
+		return status >= HttpStatus.SC_BAD_REQUEST && status < HttpStatus.SC_INTERNAL_SERVER_ERROR
+				&& status != HttpStatus.SC_UNAUTHORIZED && status != HttpStatus.SC_NOT_FOUND
+				&& status != HttpStatus.SC_REQUEST_TIMEOUT;
+	}
+	
+	/**
+	 * Completion context of one call, so that calls made at the same time
+	 * each reach their own callback
+	 */
+	public class Request implements APITask.ProgressCallback {
+		
+		protected int type;
+		protected Callback callback;
+		protected APITask task;
+		protected boolean cancelled;
+		
+		/**
+		 * Key of the download started by this request
+		 */
+		protected String fetch_key;
+		
+		/**
+		 * Requests sharing the download started by this one
+		 */
+		protected List<Request> followers = new ArrayList<Request>();
+		
+		/**
+		 * Request whose download this one is waiting for
+		 */
+		protected Request leader;
+		
+		/**
+		 * Bookmarks of the pages downloaded so far, when paging
+		 */
+		protected BookmarkContent pages;
+		protected int next_start;
+		protected int page_new_items;
+		protected int page_retries;
+		
+		/**
+		 * Bookmarks known by the caller of syncBookmarks()
+		 */
+		protected BookmarkContent current_bookmarks;
+		
+		/**
+		 * Update time reported by the server before fetching the bookmarks
+		 */
+		protected String server_update_time;
+		
+		/**
+		 * Tag asked for by getTaggedBookmarks()
+		 */
+		protected String tag;
+		
+		protected Request(int request_type, Callback request_callback) {
+			this.type = request_type;
+			this.callback = request_callback;
+		}
+		
+		protected void start(APITask request_task) {
+			if (this.isAbandoned()) {
+				return;
+			}
+			this.task = request_task;
+			request_task.start();
+		}
+		
+		/**
+		 * Abandon the call, its callback will not be called
+		 */
+		public void cancel() {
+			this.cancelled = true;
+			if (this.leader != null) {
+				this.leader.abortIfAbandoned();
+			}
+			else {
+				this.abortIfAbandoned();
+			}
+		}
+		
+		/**
+		 * Stop the download once no request is waiting for it anymore
+		 */
+		protected void abortIfAbandoned() {
+			if (!this.isAbandoned() || this.task == null) {
+				return;
+			}
+			if (this.fetch_key != null && fetches.get(this.fetch_key) == this) {
+				fetches.remove(this.fetch_key);
+			}
+			this.task.abort();
+		}
+		
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+		
+		/**
+		 * Whether neither this request nor any of its followers waits for the result
+		 */
+		protected boolean isAbandoned() {
+			if (!this.cancelled) {
+				return false;
+			}
+			for (Request follower : this.followers) {
+				if (!follower.cancelled) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Add the bookmarks of the current page not already known
+		 */
+		protected List<BookmarkContent.Item> mergePage(List<BookmarkContent.Item> items) {
+			List<BookmarkContent.Item> added = new ArrayList<BookmarkContent.Item>();
+			for (BookmarkContent.Item item : items) {
+				if (this.pages.getItem(item.url) == null) {
+					this.pages.addItem(item);
+					added.add(item);
+				}
+			}
+			this.page_new_items += added.size();
+			return added;
+		}
+		
+		@Override
+		public void onDataReceived(DefaultHandler xml_handler, int status) {
+			ScuttleAPI.this.onDataReceived(this, xml_handler, status);
+		}
+		
+		@Override
+		public void onDataProgress(DefaultHandler xml_handler, Object progress) {
+			ScuttleAPI.this.onDataProgress(this, progress);
+		}
+		
+		@Override
+		public void onError(int status) {
+			ScuttleAPI.this.onError(this, status);
 		}
 	}
 	
@@ -237,6 +762,21 @@ public class ScuttleAPI implements APITask.Callback {
 		Context getContext();
 	}
 	
+	/**
+	 * Callback told when the server could not be reached, instead of onAPIError()
+	 */
+	public interface OfflineCallback extends Callback {
+		void onOffline();
+	}
+	
+	/**
+	 * Callback told when the server refused the request, instead of onAPIError().
+	 * Other errors may go away by sending the request again.
+	 */
+	public interface RefusedCallback extends Callback {
+		void onRefused(String message);
+	}
+	
 	public interface ResultCallback extends Callback {
 		void onDataReceived(String data);
 	}
@@ -245,6 +785,26 @@ public class ScuttleAPI implements APITask.Callback {
 		void onBookmarksReceived(BookmarkContent bookmarks);
 	}
 	
+	public interface BookmarkCallback extends Callback {
+		void onBookmarkReceived(BookmarkContent.Item item);
+	}
+	
+	public interface TaggedCallback extends Callback {
+		void onTaggedBookmarksReceived(String tag, List<BookmarkContent.Item> items);
+	}
+	
+	public interface TaggedProgressCallback extends TaggedCallback {
+		void onTaggedBookmarksProgress(String tag, List<BookmarkContent.Item> batch);
+	}
+	
+	public interface BookmarksProgressCallback extends BookmarksCallback {
+		void onBookmarksProgress(List<BookmarkContent.Item> batch);
+	}
+	
+	public interface SyncCallback extends BookmarksCallback {
+		void onBookmarksUnchanged();
+	}
+	
 	public interface UpdateCallback extends Callback {
 		void onBookmarkUpdated();
 	}
@@ -0,0 +1,93 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Inverted index of bookmark titles and tags, for live search.
+ * A bookmark matches a prefix if its title, a word of its title
+ * or one of its tags starts with it.
+ */
+public class SearchIndex {
+	
+	/**
+	 * Bookmarks by term, sorted for prefix lookups
+	 */
+	protected TreeMap<String, Set<BookmarkContent.Item>> postings = new TreeMap<String, Set<BookmarkContent.Item>>();
+	
+	/**
+	 * Indexed terms of each bookmark, to remove them when it changes
+	 */
+	protected Map<BookmarkContent.Item, String[]> item_terms = new HashMap<BookmarkContent.Item, String[]>();
+	
+	/**
+	 * Index a bookmark, replacing its previous terms
+	 */
+	public synchronized void add(BookmarkContent.Item item) {
+		this.remove(item);
+		String[] terms = item.getSearchTerms();
+		for (String term : terms) {
+			Set<BookmarkContent.Item> posting = this.postings.get(term);
+			if (posting == null) {
+				posting = new HashSet<BookmarkContent.Item>();
+				this.postings.put(term, posting);
+			}
+			posting.add(item);
+		}
+		this.item_terms.put(item, terms);
+	}
+	
+	/**
+	 * Remove a bookmark from the index
+	 */
+	public synchronized void remove(BookmarkContent.Item item) {
+		String[] terms = this.item_terms.remove(item);
+		if (terms == null) {
+			return;
+		}
+		for (String term : terms) {
+			Set<BookmarkContent.Item> posting = this.postings.get(term);
+			if (posting != null) {
+				posting.remove(item);
+				if (posting.isEmpty()) {
+					this.postings.remove(term);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the bookmarks having a term starting with the given lower case prefix
+	 */
+	public synchronized Set<BookmarkContent.Item> find(String prefix) {
+		Set<BookmarkContent.Item> matches = new HashSet<BookmarkContent.Item>();
+		// All terms starting with the prefix are sorted between these bounds
+		String upper_bound = prefix + Character.MAX_VALUE;
+		for (Set<BookmarkContent.Item> posting : this.postings.subMap(prefix, upper_bound).values()) {
+			matches.addAll(posting);
+		}
+		return matches;
+	}
+	
+}
@@ -0,0 +1,88 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Bookmarks downloaded for a single tag, the least recently used tags
+ * being dropped first
+ */
+public class TagCache {
+	
+	/**
+	 * Tags kept at the same time
+	 */
+	protected static final int MAX_ENTRIES = 8;
+	
+	/**
+	 * Milliseconds after which a tag is downloaded again
+	 */
+	protected static final long MAX_AGE = 5 * 60 * 1000;
+	
+	protected static Map<String, Entry> entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return this.size() > MAX_ENTRIES;
+		}
+	};
+	
+	/**
+	 * Get the bookmarks stored under the key, or null if missing or too old
+	 */
+	public static synchronized List<BookmarkContent.Item> get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (SystemClock.elapsedRealtime() - entry.time > MAX_AGE) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.items;
+	}
+	
+	public static synchronized void put(String key, List<BookmarkContent.Item> items) {
+		entries.put(key, new Entry(items, SystemClock.elapsedRealtime()));
+	}
+	
+	/**
+	 * Forget every tag, after a bookmark changed on the server
+	 */
+	public static synchronized void clear() {
+		entries.clear();
+	}
+	
+	protected static class Entry {
+		protected List<BookmarkContent.Item> items;
+		protected long time;
+		
+		protected Entry(List<BookmarkContent.Item> tag_items, long download_time) {
+			this.items = tag_items;
+			this.time = download_time;
+		}
+	}
+	
+}
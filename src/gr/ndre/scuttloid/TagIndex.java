@@ -0,0 +1,163 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bookmarks by tag id, for browsing and filtering by tags
+ */
+public class TagIndex {
+	
+	/**
+	 * Bookmarks by tag id
+	 */
+	protected Map<Integer, Set<BookmarkContent.Item>> postings = new HashMap<Integer, Set<BookmarkContent.Item>>();
+	
+	/**
+	 * Indexed tags of each bookmark, to remove them when it changes
+	 */
+	protected Map<BookmarkContent.Item, int[]> item_tags = new HashMap<BookmarkContent.Item, int[]>();
+	
+	/**
+	 * Index a bookmark, replacing its previous tags
+	 */
+	public synchronized void add(BookmarkContent.Item item) {
+		this.remove(item);
+		int[] tag_ids = item.getTagIds();
+		if (tag_ids == null) {
+			return;
+		}
+		for (int id : tag_ids) {
+			Set<BookmarkContent.Item> posting = this.postings.get(id);
+			if (posting == null) {
+				posting = new HashSet<BookmarkContent.Item>();
+				this.postings.put(id, posting);
+			}
+			posting.add(item);
+		}
+		this.item_tags.put(item, tag_ids);
+	}
+	
+	/**
+	 * Remove a bookmark from the index
+	 */
+	public synchronized void remove(BookmarkContent.Item item) {
+		int[] tag_ids = this.item_tags.remove(item);
+		if (tag_ids == null) {
+			return;
+		}
+		for (int id : tag_ids) {
+			Set<BookmarkContent.Item> posting = this.postings.get(id);
+			if (posting != null) {
+				posting.remove(item);
+				if (posting.isEmpty()) {
+					this.postings.remove(id);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get every tag with its number of bookmarks, most used first
+	 */
+	public synchronized List<TagCount> getTagCounts() {
+		List<TagCount> counts = new ArrayList<TagCount>(this.postings.size());
+		for (Map.Entry<Integer, Set<BookmarkContent.Item>> posting : this.postings.entrySet()) {
+			String name = TagTable.getName(posting.getKey());
+			if (!BookmarkContent.Item.UNFILED_TAG.equals(name)) {
+				counts.add(new TagCount(name, posting.getValue().size()));
+			}
+		}
+		Collections.sort(counts, new Comparator<TagCount>() {
+			@Override
+			public int compare(TagCount first, TagCount second) {
+				if (first.count != second.count) {
+					return second.count - first.count;
+				}
+				return first.name.compareToIgnoreCase(second.name);
+			}
+		});
+		return counts;
+	}
+	
+	/**
+	 * Get the bookmarks having all the tags, or any of them
+	 */
+	public synchronized Set<BookmarkContent.Item> find(List<String> tags, boolean match_all) {
+		List<Set<BookmarkContent.Item>> postings_found = new ArrayList<Set<BookmarkContent.Item>>();
+		for (String tag : tags) {
+			Set<BookmarkContent.Item> posting = this.postings.get(TagTable.findId(tag));
+			if (posting != null) {
+				postings_found.add(posting);
+			}
+			else if (match_all) {
+				return new HashSet<BookmarkContent.Item>();
+			}
+		}
+		Set<BookmarkContent.Item> matches = new HashSet<BookmarkContent.Item>();
+		if (postings_found.isEmpty()) {
+			return matches;
+		}
+		if (!match_all) {
+			for (Set<BookmarkContent.Item> posting : postings_found) {
+				matches.addAll(posting);
+			}
+			return matches;
+		}
+		// Walk the smallest posting only, the others are lookups
+		Collections.sort(postings_found, new Comparator<Set<BookmarkContent.Item>>() {
+			@Override
+			public int compare(Set<BookmarkContent.Item> first, Set<BookmarkContent.Item> second) {
+				return first.size() - second.size();
+			}
+		});
+		for (BookmarkContent.Item item : postings_found.get(0)) {
+			boolean in_all = true;
+			for (int i = 1; i < postings_found.size() && in_all; i++) {
+				in_all = postings_found.get(i).contains(item);
+			}
+			if (in_all) {
+				matches.add(item);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * A tag and its number of bookmarks
+	 */
+	public static class TagCount {
+		public String name;
+		public int count;
+		
+		public TagCount(String tag_name, int tag_count) {
+			this.name = tag_name;
+			this.count = tag_count;
+		}
+	}
+	
+}
@@ -0,0 +1,129 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.app.ListActivity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.SparseBooleanArray;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+/**
+ * Every tag with its number of bookmarks, to pick the tags to filter the list by
+ */
+public class TagListActivity extends ListActivity {
+	
+	/**
+	 * Checked tags, given and returned
+	 */
+	public static final String EXTRA_TAGS = "tags";
+	
+	/**
+	 * Whether bookmarks must have every checked tag, given and returned
+	 */
+	public static final String EXTRA_MATCH_ALL = "match_all";
+	
+	protected List<TagIndex.TagCount> tags;
+	
+	protected boolean match_all;
+	
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		
+		// Show the Up button in the action bar.
+		getActionBar().setDisplayHomeAsUpEnabled(true);
+		
+		BookmarkContent bookmarks = BookmarkContent.getShared();
+		if (bookmarks == null) {
+			// Tags of the bookmarks found by a remote search
+			bookmarks = RemoteSearch.getFound();
+		}
+		this.tags = bookmarks.getTagCounts();
+		this.match_all = getIntent().getBooleanExtra(EXTRA_MATCH_ALL, true);
+		
+		List<String> labels = new ArrayList<String>(this.tags.size());
+		for (TagIndex.TagCount tag : this.tags) {
+			labels.add(getString(R.string.tag_count, tag.name, tag.count));
+		}
+		setListAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_multiple_choice, labels));
+		ListView list = getListView();
+		list.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+		
+		// Check the tags of the current filter
+		String[] checked = getIntent().getStringArrayExtra(EXTRA_TAGS);
+		if (checked != null && savedInstanceState == null) {
+			List<String> checked_tags = Arrays.asList(checked);
+			for (int i = 0; i < this.tags.size(); i++) {
+				if (checked_tags.contains(this.tags.get(i).name)) {
+					list.setItemChecked(i, true);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+	    MenuInflater inflater = getMenuInflater();
+	    inflater.inflate(R.menu.tag_menu, menu);
+	    menu.findItem(R.id.match_all).setChecked(this.match_all);
+	    return true;
+	}
+	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem menu_item) {
+		switch (menu_item.getItemId()) {
+			case android.R.id.home:
+				finish();
+				return true;
+			case R.id.match_all:
+				this.match_all = !menu_item.isChecked();
+				menu_item.setChecked(this.match_all);
+				return true;
+			case R.id.show_bookmarks:
+				this.returnCheckedTags();
+				return true;
+		}
+		return super.onOptionsItemSelected(menu_item);
+	}
+	
+	protected void returnCheckedTags() {
+		List<String> checked_tags = new ArrayList<String>();
+		SparseBooleanArray checked = getListView().getCheckedItemPositions();
+		for (int i = 0; i < checked.size(); i++) {
+			if (checked.valueAt(i)) {
+				checked_tags.add(this.tags.get(checked.keyAt(i)).name);
+			}
+		}
+		Intent result = new Intent();
+		result.putExtra(EXTRA_TAGS, checked_tags.toArray(new String[checked_tags.size()]));
+		result.putExtra(EXTRA_MATCH_ALL, this.match_all);
+		setResult(RESULT_OK, result);
+		finish();
+	}
+	
+}
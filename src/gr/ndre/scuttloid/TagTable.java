@@ -0,0 +1,109 @@
+/**
+ * Scuttloid - Semantic Scuttle Android Client
+ * Copyright (C) 2013 Alexandre Gravel-Raymond
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package gr.ndre.scuttloid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process-wide dictionary of tags. Bookmarks keep tag ids, so each
+ * distinct tag is stored once however many bookmarks carry it.
+ */
+public class TagTable {
+
+	protected static final int[] NO_TAGS = new int[0];
+
+	protected static ArrayList<String> names = new ArrayList<String>();
+	protected static ArrayList<String> lower_names = new ArrayList<String>();
+	protected static Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	/**
+	 * Get the id of a tag, adding it to the table if needed
+	 */
+	public static synchronized int getId(String tag) {
+		Integer id = ids.get(tag);
+		if (id == null) {
+			id = names.size();
+			names.add(tag);
+			lower_names.add(tag.toLowerCase(Locale.getDefault()));
+			ids.put(tag, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Get the id of a tag, or -1 if no bookmark ever had it
+	 */
+	public static synchronized int findId(String tag) {
+		Integer id = ids.get(tag);
+		if (id == null) {
+			return -1;
+		}
+		return id;
+	}
+
+	public static synchronized String getName(int id) {
+		return names.get(id);
+	}
+
+	public static synchronized String getLowerCaseName(int id) {
+		return lower_names.get(id);
+	}
+
+	/**
+	 * Get the ids of space separated tags
+	 */
+	public static int[] encode(String tags) {
+		if (tags == null) {
+			return null;
+		}
+		String[] tag_list = tags.trim().split(" +");
+		if (tag_list.length == 1 && tag_list[0].isEmpty()) {
+			return NO_TAGS;
+		}
+		int[] tag_ids = new int[tag_list.length];
+		for (int i = 0; i < tag_list.length; i++) {
+			tag_ids[i] = getId(tag_list[i]);
+		}
+		return tag_ids;
+	}
+
+	/**
+	 * Get the space separated tags, leaving out the given tag id
+	 */
+	public static String decode(int[] tag_ids, int skipped_id) {
+		if (tag_ids == null) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder();
+		for (int id : tag_ids) {
+			if (id == skipped_id) {
+				continue;
+			}
+			if (builder.length() > 0) {
+				builder.append(' ');
+			}
+			builder.append(getName(id));
+		}
+		return builder.toString();
+	}
+
+}